@@ -0,0 +1,43 @@
+package com.github.frankfarrell.blastradius;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the module graph, with the transitive dependencies of every module, and propagating changes to dependents
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModuleGraphBenchmark {
+
+    @Param({"10", "100", "1000", "5000"})
+    public int modules;
+
+    private ModuleGraph moduleGraph;
+    private BitSet changedModules;
+
+    @Setup
+    public void setup() {
+        moduleGraph = SyntheticMonorepo.moduleGraph(modules);
+        changedModules = new BitSet(moduleGraph.size());
+        //The modules everything else depends on
+        changedModules.set(moduleGraph.indexOf(SyntheticMonorepo.modulePath(0)));
+        changedModules.set(moduleGraph.indexOf(SyntheticMonorepo.modulePath(modules / 2)));
+    }
+
+    @Benchmark
+    public ModuleGraph buildGraph() {
+        return SyntheticMonorepo.moduleGraph(modules);
+    }
+
+    @Benchmark
+    public BitSet propagateToDependents() {
+        return moduleGraph.propagateToDependents(changedModules);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.frankfarrell.blastradius;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Matching changed paths against file patterns, on their own and for every module of a build.
+ * Run with -prof gc to see what the matching loops allocate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PatternMatchingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int paths;
+
+    @Param({"500"})
+    public int modules;
+
+    private List<String> changedPaths;
+    private FilePatternMatcher filePatternMatcher;
+    private ModuleChangeEvaluator moduleChangeEvaluator;
+
+    @Setup
+    public void setup() {
+        changedPaths = SyntheticMonorepo.changedPaths(paths, modules);
+        filePatternMatcher = FilePatternMatcher.forPatterns(ModuleChangedTask.DEFAULT_FILE_PATTERNS);
+        moduleChangeEvaluator = new ModuleChangeEvaluator(SyntheticMonorepo.moduleGraph(modules), ModuleChangedTask.DEFAULT_FILE_PATTERNS);
+    }
+
+    @Benchmark
+    public void matchEveryPath(final Blackhole blackhole) {
+        for(final String path : changedPaths){
+            blackhole.consume(filePatternMatcher.matches(path));
+        }
+    }
+
+    //How matching is done when the evaluator matches paths, with one buffer and matcher for every path
+    @Benchmark
+    public void matchEveryPathReusingTheMatcher(final Blackhole blackhole) {
+        final PathBuffer pathBuffer = new PathBuffer();
+        final Matcher matcher = filePatternMatcher.newMatcher();
+        for(final String path : changedPaths){
+            blackhole.consume(FilePatternMatcher.matches(matcher, pathBuffer.set(path), 0));
+        }
+    }
+
+    @Benchmark
+    public Map<String, Boolean> changedModules() {
+        return moduleChangeEvaluator.getChangedModules(0, changedPaths);
+    }
+}
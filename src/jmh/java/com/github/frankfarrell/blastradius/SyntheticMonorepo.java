@@ -0,0 +1,58 @@
+package com.github.frankfarrell.blastradius;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates module graphs and changed paths shaped like a large monorepo, for the benchmarks.
+ *
+ * Modules are nested two levels deep, eg :group3:module17, and each depends on a few modules added before it, so the
+ * graph is full of diamonds. A fixed seed keeps runs comparable.
+ */
+final class SyntheticMonorepo {
+
+    static final int MODULES_PER_GROUP = 50;
+    static final int DEPENDENCIES_PER_MODULE = 3;
+
+    private SyntheticMonorepo() {
+    }
+
+    static String modulePath(final int module) {
+        return ":group" + (module / MODULES_PER_GROUP) + ":module" + module;
+    }
+
+    static String moduleDirectory(final int module) {
+        return "/group" + (module / MODULES_PER_GROUP) + "/module" + module;
+    }
+
+    static ModuleGraph moduleGraph(final int modules) {
+        final Random random = new Random(42);
+        final ModuleGraph.Builder builder = new ModuleGraph.Builder()
+                .addModule(":", "", null, false);
+
+        for(int group = 0; group * MODULES_PER_GROUP < modules; group++){
+            builder.addModule(":group" + group, "/group" + group, ":", false);
+        }
+        for(int module = 0; module < modules; module++){
+            builder.addModule(modulePath(module), moduleDirectory(module), ":group" + (module / MODULES_PER_GROUP), true);
+            for(int i = 0; i < DEPENDENCIES_PER_MODULE && module > 0; i++){
+                builder.addDependency(modulePath(module), modulePath(random.nextInt(module)));
+            }
+        }
+        return builder.build();
+    }
+
+    /*
+    Paths spread over the modules, about a third of them in src/main
+     */
+    static List<String> changedPaths(final int paths, final int modules) {
+        final Random random = new Random(42);
+        final String[] directories = {"/src/main/java/com/example/", "/src/test/java/com/example/", "/docs/"};
+        final List<String> result = new ArrayList<>(paths);
+        for(int i = 0; i < paths; i++){
+            result.add(moduleDirectory(random.nextInt(modules)) + directories[random.nextInt(directories.length)] + "File" + i + ".java");
+        }
+        return result;
+    }
+}
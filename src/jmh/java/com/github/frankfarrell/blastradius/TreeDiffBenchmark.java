@@ -0,0 +1,118 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Diffing two commits of an in memory repository, in full, under a few directories and stopping at the first match
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeDiffBenchmark {
+
+    private static final Pattern SRC_MAIN = Pattern.compile(".*/src/main/.*");
+
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    //Percentage of files changed between the two commits
+    @Param({"1"})
+    public int changedPercentage;
+
+    private InMemoryRepository repository;
+    private GitRepository gitRepository;
+    private Optional<GitRepository.CommitIds> commitIds;
+    private SortedSet<String> pathPrefixes;
+
+    @Setup
+    public void setup() throws IOException {
+        repository = new InMemoryRepository(new DfsRepositoryDescription("benchmark"));
+        gitRepository = new GitRepository(repository);
+
+        final ObjectId firstCommit = commit(null, 0);
+        final ObjectId secondCommit = commit(firstCommit, changedPercentage);
+        commitIds = Optional.of(new GitRepository.CommitIds(firstCommit, secondCommit));
+
+        pathPrefixes = new TreeSet<>();
+        for(int module = 0; module < 10; module++){
+            pathPrefixes.add(path(module).substring(1) + "/src/main");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        gitRepository.close();
+    }
+
+    @Benchmark
+    public Optional<List<String>> diffWholeRepository() {
+        return gitRepository.getPathsThatHaveChanged(commitIds);
+    }
+
+    @Benchmark
+    public Optional<List<String>> diffUnderPrefixes() {
+        return gitRepository.getPathsThatHaveChanged(commitIds, pathPrefixes);
+    }
+
+    @Benchmark
+    public Optional<Boolean> stopAtFirstChange() {
+        final Matcher srcMain = SRC_MAIN.matcher("");
+        return gitRepository.anyPathHasChanged(commitIds, GitRepository.WHOLE_REPOSITORY, path -> srcMain.reset(path).matches());
+    }
+
+    private static String path(final int module) {
+        return SyntheticMonorepo.moduleDirectory(module);
+    }
+
+    //A file per module per hundred files, with every hundredth file changed once per changed percentage point
+    private ObjectId commit(final ObjectId parent, final int changedPercentage) throws IOException {
+        try (ObjectInserter inserter = repository.newObjectInserter()) {
+            final DirCache dirCache = DirCache.newInCore();
+            final DirCacheBuilder builder = dirCache.builder();
+
+            for(int i = 0; i < files; i++){
+                final boolean changed = i % 100 < changedPercentage;
+                final DirCacheEntry entry = new DirCacheEntry(path(i % 500).substring(1)
+                        + (i % 3 == 0 ? "/src/test/" : "/src/main/") + "File" + i + ".java");
+                entry.setFileMode(FileMode.REGULAR_FILE);
+                entry.setObjectId(inserter.insert(Constants.OBJ_BLOB,
+                        ("class File" + i + (changed ? " { int changed; }" : " {}")).getBytes(StandardCharsets.UTF_8)));
+                builder.add(entry);
+            }
+            builder.finish();
+
+            final CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(dirCache.writeTree(inserter));
+            if(parent != null){
+                commitBuilder.setParentId(parent);
+            }
+            final PersonIdent author = new PersonIdent("benchmark", "benchmark@example.com");
+            commitBuilder.setAuthor(author);
+            commitBuilder.setCommitter(author);
+            commitBuilder.setMessage("Benchmark");
+
+            final ObjectId commitId = inserter.insert(commitBuilder);
+            inserter.flush();
+            return commitId;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.frankfarrell.blastradius;
+
+import com.github.zafarkhaja.semver.Version;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexing the version tags of a repository and finding the version before one, as PREVIOUS_TAG does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VersionTagBenchmark {
+
+    @Param({"50000"})
+    public int tags;
+
+    private Map<String, Ref> refs;
+    private VersionTagIndex versionTagIndex;
+    private Version latestVersion;
+
+    @Setup
+    public void setup() {
+        refs = new HashMap<>();
+        for(int i = 0; i < tags; i++){
+            //One in ten tags isn't a version
+            final String name = i % 10 == 0
+                    ? "release-candidate-" + i
+                    : (i / 10000) + "." + (i / 100 % 100) + "." + (i % 100);
+            final ObjectId commitId = ObjectId.fromRaw(new int[]{i, i >>> 8, 17, 42, 7});
+            refs.put(name, new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, "refs/tags/" + name, commitId));
+        }
+        versionTagIndex = buildIndex();
+        latestVersion = versionTagIndex.getVersion(versionTagIndex.size() - 1);
+    }
+
+    @Benchmark
+    public VersionTagIndex buildIndex() {
+        return VersionTagIndex.build(refs, "", Ref::getObjectId);
+    }
+
+    @Benchmark
+    public ObjectId findPreviousVersion() {
+        return versionTagIndex.getTagId(versionTagIndex.indexOf(latestVersion) - 1);
+    }
+}
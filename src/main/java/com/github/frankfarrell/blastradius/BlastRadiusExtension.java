@@ -0,0 +1,132 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.Task;
+import org.gradle.api.tasks.bundling.Jar;
+import org.gradle.api.tasks.compile.AbstractCompile;
+import org.gradle.api.tasks.testing.Test;
+import org.gradle.language.jvm.tasks.ProcessResources;
+
+import java.util.*;
+
+/**
+ * Configures the affected-only mode of the plugin, as the blastRadius block of the root project.
+ *
+ * When it's on, the changed modules are worked out once when the task graph is ready, and tasks of the configured
+ * types or names are skipped in modules that haven't changed and that no changed module depends on.
+ */
+public class BlastRadiusExtension {
+
+    public static final String NAME = "blastRadius";
+
+    //Eg -PblastRadius.affectedOnly=true to turn it on for a single build
+    public static final String AFFECTED_ONLY_PROPERTY = "blastRadius.affectedOnly";
+
+    //Eg -PblastRadius.traceDecisions=true to see why each module has changed
+    public static final String TRACE_DECISIONS_PROPERTY = "blastRadius.traceDecisions";
+
+    //Set the strategy when the plugin is applied, so the diff can be prefetched
+    public static final String DIFF_STRATEGY_PROPERTY = "blastRadius.diffStrategy";
+    public static final String PREVIOUS_COMMIT_PROPERTY = "blastRadius.previousCommit";
+
+    //Eg -PblastRadius.prefetch=true to diff while the build is being configured
+    public static final String PREFETCH_PROPERTY = "blastRadius.prefetch";
+
+    public static final List<Class<? extends Task>> DEFAULT_TASK_TYPES = Collections.unmodifiableList(
+            Arrays.asList(AbstractCompile.class, ProcessResources.class, Test.class, Jar.class));
+
+    private boolean affectedOnly = false;
+
+    private String diffStrategy = DiffStrategy.JENKINS_LAST_COMMIT.name();
+    private String previousCommit;
+
+    private boolean traceDecisions = false;
+
+    private List<String> filePatterns = new ArrayList<>(ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS);
+    private Map<String, List<String>> moduleFilePatterns = new HashMap<>();
+    //For PREVIOUS_TAG, modules that are compared with their own version tags, eg ":payments" -> "payments-"
+    private Map<String, String> moduleTagPrefixes = new HashMap<>();
+
+    private List<Class<? extends Task>> taskTypes = new ArrayList<>(DEFAULT_TASK_TYPES);
+    private Set<String> taskNames = new HashSet<>();
+
+    public boolean isAffectedOnly() {
+        return affectedOnly;
+    }
+
+    public void setAffectedOnly(final boolean affectedOnly) {
+        this.affectedOnly = affectedOnly;
+    }
+
+    public String getDiffStrategy() {
+        return diffStrategy;
+    }
+
+    public void setDiffStrategy(final String diffStrategy) {
+        //Fail when configured rather than when the task graph is ready
+        this.diffStrategy = DiffStrategy.valueOf(diffStrategy).name();
+    }
+
+    public String getPreviousCommit() {
+        return previousCommit;
+    }
+
+    public void setPreviousCommit(final String previousCommit) {
+        this.previousCommit = previousCommit;
+    }
+
+    public boolean isTraceDecisions() {
+        return traceDecisions;
+    }
+
+    public void setTraceDecisions(final boolean traceDecisions) {
+        this.traceDecisions = traceDecisions;
+    }
+
+    public List<String> getFilePatterns() {
+        return filePatterns;
+    }
+
+    public void setFilePatterns(final List<String> filePatterns) {
+        this.filePatterns = filePatterns;
+    }
+
+    public Map<String, List<String>> getModuleFilePatterns() {
+        return moduleFilePatterns;
+    }
+
+    public void setModuleFilePatterns(final Map<String, List<String>> moduleFilePatterns) {
+        this.moduleFilePatterns = moduleFilePatterns;
+    }
+
+    public Map<String, String> getModuleTagPrefixes() {
+        return moduleTagPrefixes;
+    }
+
+    public void setModuleTagPrefixes(final Map<String, String> moduleTagPrefixes) {
+        this.moduleTagPrefixes = moduleTagPrefixes;
+    }
+
+    public List<Class<? extends Task>> getTaskTypes() {
+        return taskTypes;
+    }
+
+    public void setTaskTypes(final List<Class<? extends Task>> taskTypes) {
+        this.taskTypes = taskTypes;
+    }
+
+    public Set<String> getTaskNames() {
+        return taskNames;
+    }
+
+    public void setTaskNames(final Set<String> taskNames) {
+        this.taskNames = taskNames;
+    }
+
+    /*
+    Whether task is one of those that are skipped in unaffected modules
+     */
+    public boolean appliesTo(final Task task) {
+        return taskNames.contains(task.getName())
+                || taskTypes.stream().anyMatch(taskType -> taskType.isInstance(task));
+    }
+}
@@ -1,12 +1,197 @@
 package com.github.frankfarrell.blastradius;
 
+import org.gradle.api.GradleException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.execution.TaskExecutionGraph;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 
 public class BlastRadiusPlugin implements Plugin<Project>  {
 
+    private static final Logger logger = Logging.getLogger(BlastRadiusPlugin.class);
+
+    public static final String TASK_GROUP = "blast radius";
+    public static final String CHANGED_MODULES_TASK_NAME = "blastRadiusChangedModules";
+    public static final String CHANGE_MATRIX_TASK_NAME = "blastRadiusChangeMatrix";
+    public static final String RECORD_DEPLOY_TASK_NAME = "blastRadiusRecordDeploy";
+    public static final String CHANGE_QUERY_SERVER_TASK_NAME = "blastRadiusServe";
+
     public void apply(Project project) {
 
+        //Affected-only mode and the tasks are for the whole build, so they're configured on the root project
+        if(project != project.getRootProject()){
+            logger.warn("The blast radius plugin only does anything when it's applied to the root project, not {}", project.getPath());
+            return;
+        }
+
+        final BlastRadiusExtension extension = project.getExtensions().create(BlastRadiusExtension.NAME, BlastRadiusExtension.class);
+
+        if(project.hasProperty(BlastRadiusExtension.AFFECTED_ONLY_PROPERTY)){
+            extension.setAffectedOnly(Boolean.parseBoolean(String.valueOf(project.property(BlastRadiusExtension.AFFECTED_ONLY_PROPERTY))));
+        }
+        if(project.hasProperty(BlastRadiusExtension.TRACE_DECISIONS_PROPERTY)){
+            extension.setTraceDecisions(Boolean.parseBoolean(String.valueOf(project.property(BlastRadiusExtension.TRACE_DECISIONS_PROPERTY))));
+        }
+        if(project.hasProperty(BlastRadiusExtension.DIFF_STRATEGY_PROPERTY)){
+            extension.setDiffStrategy(String.valueOf(project.property(BlastRadiusExtension.DIFF_STRATEGY_PROPERTY)));
+        }
+        if(project.hasProperty(BlastRadiusExtension.PREVIOUS_COMMIT_PROPERTY)){
+            extension.setPreviousCommit(String.valueOf(project.property(BlastRadiusExtension.PREVIOUS_COMMIT_PROPERTY)));
+        }
+        if(project.hasProperty(BlastRadiusExtension.PREFETCH_PROPERTY)
+                && Boolean.parseBoolean(String.valueOf(project.property(BlastRadiusExtension.PREFETCH_PROPERTY)))){
+            prefetchDiff(project, extension);
+        }
+
+        registerTasks(project, extension);
+
+        project.getGradle().getTaskGraph().whenReady(taskGraph -> {
+            if(extension.isAffectedOnly()){
+                skipTasksOfUnaffectedModules(project, extension, taskGraph);
+            }
+        });
+    }
+
+    /*
+    Only the strategy given when the plugin is applied can be prefetched. If the build script changes it, the task
+    asks for a different diff and the prefetched one is wasted
+     */
+    private void prefetchDiff(final Project project, final BlastRadiusExtension extension) {
+        final DiffStrategy diffStrategy = DiffStrategy.valueOf(extension.getDiffStrategy());
+        if(diffStrategy == DiffStrategy.LEDGER){
+            //Each module has its own diff, which needs the module graph
+            logger.info("The diff for the LEDGER strategy can't be prefetched");
+            return;
+        }
+        GitDiffService.forBuild(project).prefetch(diffStrategy, Optional.ofNullable(extension.getPreviousCommit()));
+    }
+
+    /*
+    Registered rather than created, so none of them is configured, and the module graph isn't built, unless the
+    build runs it. The defaults come from the extension, which is only read when the task runs
+     */
+    private void registerTasks(final Project project, final BlastRadiusExtension extension) {
+
+        project.getTasks().register(CHANGED_MODULES_TASK_NAME, ProjectModulesChangedTask.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Writes which modules have changed to " + task.getFileLocation());
+            task.setDiffStrategy(project.provider(extension::getDiffStrategy));
+            task.setPreviousCommit(project.provider(extension::getPreviousCommit));
+            task.setTraceDecisions(project.provider(extension::isTraceDecisions));
+            task.setFilePatterns(project.provider(extension::getFilePatterns));
+            task.setModuleFilePatterns(extension.getModuleFilePatterns());
+            task.setModuleTagPrefixes(extension.getModuleTagPrefixes());
+        });
+
+        project.getTasks().register(CHANGE_MATRIX_TASK_NAME, ChangeMatrixTask.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Writes which modules every commit in a range changed");
+            task.setFilePatterns(project.provider(extension::getFilePatterns));
+            task.setModuleFilePatterns(extension.getModuleFilePatterns());
+        });
+
+        project.getTasks().register(RECORD_DEPLOY_TASK_NAME, UpdateDeployLedgerTask.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Records HEAD in the deploy ledger as the commit every module was deployed from");
+        });
+
+        project.getTasks().register(CHANGE_QUERY_SERVER_TASK_NAME, ChangeQueryServerTask.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Answers which modules changed between two commits over HTTP until it is stopped");
+            task.setFilePatterns(project.provider(extension::getFilePatterns));
+            task.setModuleFilePatterns(extension.getModuleFilePatterns());
+        });
+    }
+
+    private void skipTasksOfUnaffectedModules(final Project rootProject, final BlastRadiusExtension extension, final TaskExecutionGraph taskGraph) {
+
+        final ModuleGraph moduleGraph = ModuleGraph.forBuild(rootProject);
+        final int rootModule = moduleGraph.indexOf(rootProject.getPath());
+        final Map<String, Set<String>> moduleFilePatterns = extension.getModuleFilePatterns().entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> new HashSet<>(entry.getValue())));
+        final ModuleChangeEvaluator moduleChangeEvaluator =
+                new ModuleChangeEvaluator(moduleGraph, new HashSet<>(extension.getFilePatterns()), moduleFilePatterns);
+
+        final BitSet changedModules;
+        try {
+            final DiffStrategy diffStrategy = DiffStrategy.valueOf(extension.getDiffStrategy());
+            if(diffStrategy == DiffStrategy.PREVIOUS_TAG && !extension.getModuleTagPrefixes().isEmpty()){
+                changedModules = getChangedModulesSincePreviousTagOfModule(rootProject, extension, moduleGraph, moduleChangeEvaluator, rootModule);
+            }
+            else {
+                final Optional<List<String>> pathsWithDiff = GitDiffService.forBuild(rootProject).getPathsThatHaveChanged(
+                        diffStrategy,
+                        Optional.ofNullable(extension.getPreviousCommit()),
+                        moduleChangeEvaluator.getPathPrefixes(rootModule));
+
+                //Better to build too much than too little
+                if(!pathsWithDiff.isPresent()){
+                    logger.lifecycle("Can't tell what has changed, building every module");
+                    return;
+                }
+                changedModules = moduleChangeEvaluator.getChangedModuleIndexes(rootModule, pathsWithDiff.get());
+            }
+        } catch (IOException e) {
+            throw new GradleException("Couldn't work out which modules have changed", e);
+        }
+
+        final BitSet unaffected = getUnaffectedModules(moduleGraph, changedModules);
+        logger.lifecycle("{} of {} modules are unaffected by the changes", unaffected.cardinality(), moduleGraph.size());
+
+        for(final Task task : taskGraph.getAllTasks()){
+            final String modulePath = task.getProject().getPath();
+            if(extension.appliesTo(task) && moduleGraph.contains(modulePath) && unaffected.get(moduleGraph.indexOf(modulePath))){
+                task.onlyIf(skippedTask -> {
+                    logger.info("Skipping {}, {} is unaffected by the changes", skippedTask.getPath(), modulePath);
+                    return false;
+                });
+            }
+        }
+    }
+
+    /*
+    Each module is compared with the previous tag of its own prefix. Modules without a previous tag have changed
+     */
+    private static BitSet getChangedModulesSincePreviousTagOfModule(final Project rootProject,
+                                                                    final BlastRadiusExtension extension,
+                                                                    final ModuleGraph moduleGraph,
+                                                                    final ModuleChangeEvaluator moduleChangeEvaluator,
+                                                                    final int rootModule) throws IOException {
+        final List<String> modulePaths = moduleGraph.getModuleAndDescendants(rootModule).stream()
+                .map(moduleGraph::getModulePath)
+                .collect(Collectors.toList());
+        final Function<String, Optional<List<String>>> pathsWithDiffOfModule = GitDiffService.forBuild(rootProject)
+                .getPathsThatHaveChangedSincePreviousTagOfModule(extension.getModuleTagPrefixes(), modulePaths,
+                        moduleChangeEvaluator.getPathPrefixes(rootModule));
+
+        final BitSet changedModules = new BitSet(moduleGraph.size());
+        for(final Map.Entry<String, Boolean> entry : moduleChangeEvaluator.getChangedModules(rootModule, pathsWithDiffOfModule).entrySet()){
+            if(entry.getValue()){
+                changedModules.set(moduleGraph.indexOf(entry.getKey()));
+            }
+        }
+        return changedModules;
+    }
+
+    /*
+    Modules that haven't changed and that no changed module depends on, so nothing needs to be built in them
+     */
+    static BitSet getUnaffectedModules(final ModuleGraph moduleGraph, final BitSet changedModules) {
+        final BitSet affected = new BitSet(moduleGraph.size());
+        for(int module = changedModules.nextSetBit(0); module >= 0; module = changedModules.nextSetBit(module + 1)){
+            affected.or(moduleGraph.getTransitiveDependencies(module));
+        }
+        final BitSet unaffected = new BitSet(moduleGraph.size());
+        unaffected.set(0, moduleGraph.size());
+        unaffected.andNot(affected);
+        return unaffected;
     }
-}
\ No newline at end of file
+}
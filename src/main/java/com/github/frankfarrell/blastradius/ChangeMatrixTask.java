@@ -0,0 +1,227 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.lib.Constants;
+import org.gradle.api.Project;
+import org.gradle.api.file.Directory;
+import org.gradle.api.internal.ConventionTask;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Writes which modules every commit in a range changed, eg for release notes or to plan a canary.
+ *
+ * The first line lists the modules, "commit,:,:moduleA,:moduleB". Every other line is a commit, newest first, and
+ * the modules it changed compared with its first parent as a bitset in hex. Byte i of the bitset holds modules 8i to
+ * 8i+7 in the order of the first line, lowest bit first, the same as {@link BitSet#valueOf(byte[])}.
+ *
+ * The range is walked once, however many commits are in it.
+ */
+public class ChangeMatrixTask extends ConventionTask {
+
+    private static final Logger logger = Logging.getLogger(ChangeMatrixTask.class);
+
+    public static final String DEFAULT_FILE_LOCATION = "changeMatrix";
+    public static final int DEFAULT_MAX_COMMITS = 500;
+
+    //Everything the action needs is captured when the task is configured, so it never goes back to the project
+    private final String modulePath;
+    private final File rootDirectory;
+    private final Directory projectDirectory;
+    private final Property<ModuleGraph> moduleGraph;
+
+    private final Property<String> fileLocation;
+    private final SetProperty<String> filePatterns;
+    private Map<String, List<String>> moduleFilePatterns = new HashMap<>();
+
+    private final Property<String> sinceCommit;
+    private final Property<String> untilCommit;
+    private int maxCommits = DEFAULT_MAX_COMMITS;
+
+    public ChangeMatrixTask() {
+        final Project project = getProject();
+        final ObjectFactory objects = project.getObjects();
+
+        this.modulePath = project.getPath();
+        this.rootDirectory = project.getRootDir();
+        this.projectDirectory = project.getLayout().getProjectDirectory();
+        //Set once every project has been configured, so the action never builds it from the project
+        this.moduleGraph = objects.property(ModuleGraph.class);
+        ModuleGraph.captureWhenTaskGraphIsReady(this, moduleGraph);
+        GitDiffService.closeWhenBuildFinishes(project);
+
+        this.fileLocation = objects.property(String.class);
+        this.fileLocation.set(DEFAULT_FILE_LOCATION);
+        this.filePatterns = objects.setProperty(String.class);
+        this.filePatterns.set(ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS);
+        this.sinceCommit = objects.property(String.class);
+        this.untilCommit = objects.property(String.class);
+        this.untilCommit.set(Constants.HEAD);
+    }
+
+    @Internal
+    public String getFileLocation() {
+        return fileLocation.get();
+    }
+
+    public void setFileLocation(final String fileLocation) {
+        this.fileLocation.set(fileLocation == null ? DEFAULT_FILE_LOCATION : fileLocation);
+    }
+
+    @OutputFile
+    public File getOutputFile() {
+        return projectDirectory.file(getFileLocation()).getAsFile();
+    }
+
+    //Timings and counters of the build up to this task, see Metrics
+    @Internal
+    public File getMetricsFile() {
+        return projectDirectory.file(getFileLocation() + Metrics.FILE_SUFFIX).getAsFile();
+    }
+
+    @Input
+    public Set<String> getFilePatterns() {
+        return filePatterns.get();
+    }
+
+    public void setFilePatterns(final List<String> filePatterns) {
+        this.filePatterns.set(filePatterns == null ? ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS : new HashSet<>(filePatterns));
+    }
+
+    public void setFilePatterns(final Provider<? extends Iterable<String>> filePatterns) {
+        this.filePatterns.set(filePatterns);
+    }
+
+    @Input
+    public Map<String, Set<String>> getModuleFilePatterns() {
+        return moduleFilePatterns.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> new HashSet<>(entry.getValue())));
+    }
+
+    public void setModuleFilePatterns(final Map<String, List<String>> moduleFilePatterns) {
+        this.moduleFilePatterns = moduleFilePatterns;
+    }
+
+    //Exclusive, everything reachable from untilCommit is walked if it isn't set
+    @Input
+    @org.gradle.api.tasks.Optional
+    public String getSinceCommit() {
+        return sinceCommit.getOrNull();
+    }
+
+    public void setSinceCommit(final String sinceCommit) {
+        this.sinceCommit.set(sinceCommit);
+    }
+
+    public void setSinceCommit(final Provider<String> sinceCommit) {
+        this.sinceCommit.set(sinceCommit);
+    }
+
+    @Input
+    public String getUntilCommit() {
+        return untilCommit.get();
+    }
+
+    public void setUntilCommit(final String untilCommit) {
+        this.untilCommit.set(untilCommit == null ? Constants.HEAD : untilCommit);
+    }
+
+    public void setUntilCommit(final Provider<String> untilCommit) {
+        this.untilCommit.set(untilCommit);
+    }
+
+    @Input
+    public int getMaxCommits() {
+        return maxCommits;
+    }
+
+    public void setMaxCommits(final int maxCommits) {
+        this.maxCommits = maxCommits;
+    }
+
+    //Branch names and HEAD move, so the commits they point at are the input
+    @Input
+    public String getCommitRange() throws IOException {
+        final GitRepository gitRepository = GitDiffService.forRootDirectory(rootDirectory).getGitRepository();
+        return gitRepository.resolveCommitName(Optional.ofNullable(getSinceCommit())) + ".." + gitRepository.resolveCommitName(Optional.of(getUntilCommit()));
+    }
+
+    @Input
+    public String getModuleGraphFingerprint() {
+        return ModuleGraph.captured(getPath(), moduleGraph).getFingerprint();
+    }
+
+    @TaskAction
+    public void writeChangeMatrix() throws IOException {
+
+        final ModuleGraph moduleGraph = ModuleGraph.captured(getPath(), this.moduleGraph);
+        final int startModule = moduleGraph.indexOf(modulePath);
+        final ModuleChangeEvaluator moduleChangeEvaluator = new ModuleChangeEvaluator(moduleGraph, getFilePatterns(), getModuleFilePatterns());
+
+        //Columns of the matrix
+        final List<Integer> modules = moduleGraph.getModuleAndDescendants(startModule);
+        final int bytesPerCommit = (modules.size() + 7) / 8;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(getOutputFile().toPath(), StandardCharsets.UTF_8)) {
+
+            writer.write("commit");
+            for(final int module : modules){
+                writer.write("," + moduleGraph.getModulePath(module));
+            }
+            writer.write("\n");
+
+            final IOException[] writeFailure = new IOException[1];
+
+            GitDiffService.forRootDirectory(rootDirectory).getGitRepository().walkChangesOfCommits(
+                    Optional.ofNullable(getSinceCommit()),
+                    getUntilCommit(),
+                    maxCommits,
+                    moduleChangeEvaluator.getPathPrefixes(startModule),
+                    (commit, pathsWithDiff) -> {
+                        if(writeFailure[0] != null){
+                            return;
+                        }
+                        final BitSet changed = moduleChangeEvaluator.getChangedModuleIndexes(startModule, pathsWithDiff);
+                        final BitSet columns = new BitSet(modules.size());
+                        for(int column = 0; column < modules.size(); column++){
+                            columns.set(column, changed.get(modules.get(column)));
+                        }
+                        try {
+                            writer.write(commit.name() + "," + toHex(columns, bytesPerCommit) + "\n");
+                        } catch (IOException e) {
+                            writeFailure[0] = e;
+                        }
+                    });
+
+            if(writeFailure[0] != null){
+                throw writeFailure[0];
+            }
+        }
+        logger.info("Wrote change matrix of {} modules to {}", modules.size(), getOutputFile());
+        Metrics.writeReport(getMetricsFile());
+    }
+
+    static String toHex(final BitSet bitSet, final int length) {
+        final byte[] bytes = Arrays.copyOf(bitSet.toByteArray(), length);
+        final StringBuilder hex = new StringBuilder(length * 2);
+        for(final byte b : bytes){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
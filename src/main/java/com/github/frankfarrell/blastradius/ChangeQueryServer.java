@@ -0,0 +1,338 @@
+package com.github.frankfarrell.blastradius;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.gradle.api.GradleException;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers which modules changed between two commits over HTTP on the loopback interface, for tools that would
+ * otherwise start a build for every question.
+ *
+ * The module graph, the file patterns and the repository are loaded once. Which modules a pair of trees changes is
+ * kept in a least recently used cache, so commits with the same trees, eg a merge and the branch it merged, are only
+ * diffed once. Questions are answered concurrently, and concurrent questions about the same trees wait for one diff.
+ *
+ * GET /changed?base=A&head=B&module=:x lists the modules under the start module, or just :x, and whether each has
+ * changed. head defaults to HEAD. POST /stop stops the server.
+ *
+ * The module graph can't be rebuilt without configuring the build again, so when one of the watched files, eg
+ * settings.gradle, changes the server stops itself rather than answer from a stale graph.
+ */
+public class ChangeQueryServer implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger(ChangeQueryServer.class);
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    static final String CHANGED_PATH = "/changed";
+    static final String STOP_PATH = "/stop";
+
+    //How often the watched files are checked
+    static final long WATCH_INTERVAL_MILLIS = 2000;
+
+    private final GitRepository gitRepository;
+    private final ModuleGraph moduleGraph;
+    private final ModuleChangeEvaluator moduleChangeEvaluator;
+    private final int startModule;
+    private final SortedSet<String> pathPrefixes;
+
+    private final Map<TreePair, Future<BitSet>> changedModules;
+
+    private final List<File> watchedFiles;
+    private final List<String> watchedStamps;
+
+    private HttpServer httpServer;
+    private ExecutorService executor;
+    private ScheduledExecutorService watcher;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile String stopReason;
+
+    public ChangeQueryServer(final GitRepository gitRepository,
+                             final ModuleGraph moduleGraph,
+                             final ModuleChangeEvaluator moduleChangeEvaluator,
+                             final int startModule,
+                             final int cacheSize,
+                             final List<File> watchedFiles) {
+        this.gitRepository = gitRepository;
+        this.moduleGraph = moduleGraph;
+        this.moduleChangeEvaluator = moduleChangeEvaluator;
+        this.startModule = startModule;
+        //Git only needs to look at directories that some module's patterns could match
+        this.pathPrefixes = moduleChangeEvaluator.getPathPrefixes(startModule);
+
+        this.changedModules = new LinkedHashMap<TreePair, Future<BitSet>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<TreePair, Future<BitSet>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        this.watchedFiles = new ArrayList<>(watchedFiles);
+        this.watchedStamps = stampsOf(this.watchedFiles);
+    }
+
+    /*
+    Starts answering on the loopback interface. Port 0 picks a free port, the one bound is returned
+     */
+    public synchronized int start(final int port, final int threads) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext(CHANGED_PATH, this::handleChanged);
+        httpServer.createContext(STOP_PATH, this::handleStop);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "blast-radius-query-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executor);
+        httpServer.start();
+
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "blast-radius-query-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(this::checkWatchedFiles, WATCH_INTERVAL_MILLIS, WATCH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        return httpServer.getAddress().getPort();
+    }
+
+    /*
+    Blocks until the server has been stopped, and returns why
+     */
+    public String awaitStop() throws InterruptedException {
+        stopped.await();
+        return stopReason;
+    }
+
+    public void stop(final String reason) {
+        synchronized (this){
+            if(stopReason != null){
+                return;
+            }
+            stopReason = reason;
+        }
+        logger.lifecycle("Stopping change query server, {}", reason);
+        if(httpServer != null){
+            //Lets the response to a stop request be sent
+            httpServer.stop(1);
+            executor.shutdown();
+            watcher.shutdownNow();
+        }
+        stopped.countDown();
+    }
+
+    @Override
+    public void close() {
+        stop("it was closed");
+    }
+
+    /*
+    The indexes of the modules under the start module that changed between the commits two revisions point at
+     */
+    public BitSet getChangedModules(final String baseRevision, final String headRevision) throws IOException {
+        final TreePair trees = new TreePair(gitRepository.resolveTreeId(baseRevision), gitRepository.resolveTreeId(headRevision));
+
+        final FutureTask<BitSet> task = new FutureTask<>(() -> moduleChangeEvaluator.getChangedModuleIndexes(startModule,
+                trees.previousTree.equals(trees.currentTree)
+                        ? Collections.emptyList()
+                        : gitRepository.getPathsWithDiffOfTrees(trees.previousTree, trees.currentTree, pathPrefixes)));
+        final Future<BitSet> existing;
+        synchronized (changedModules){
+            existing = changedModules.putIfAbsent(trees, task);
+        }
+
+        final Future<BitSet> result;
+        if(existing == null){
+            task.run();
+            result = task;
+        }
+        else {
+            logger.debug("Reusing changed modules of trees {}", trees);
+            result = existing;
+        }
+
+        try {
+            //Callers can't change what's cached
+            return (BitSet) result.get().clone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted waiting for git diff", e);
+        } catch (ExecutionException e) {
+            //Don't cache failures
+            synchronized (changedModules){
+                changedModules.remove(trees, result);
+            }
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new GradleException("Failed to compute git diff", e.getCause());
+        }
+    }
+
+    private void handleChanged(final HttpExchange exchange) throws IOException {
+        try {
+            if(!"GET".equals(exchange.getRequestMethod())){
+                respondWithError(exchange, 405, "Use GET");
+                return;
+            }
+            if(stopReason != null){
+                respondWithError(exchange, 503, "The server is stopping, " + stopReason);
+                return;
+            }
+
+            final Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            final String base = parameters.get("base");
+            if(base == null){
+                respondWithError(exchange, 400, "base must be given");
+                return;
+            }
+            final String head = parameters.getOrDefault("head", Constants.HEAD);
+
+            final List<Integer> modules;
+            if(parameters.containsKey("module")){
+                if(!moduleGraph.contains(parameters.get("module"))){
+                    respondWithError(exchange, 400, "Unknown module " + parameters.get("module"));
+                    return;
+                }
+                modules = Collections.singletonList(moduleGraph.indexOf(parameters.get("module")));
+            }
+            else {
+                modules = moduleGraph.getModuleAndDescendants(startModule);
+            }
+
+            final BitSet changed = getChangedModules(base, head);
+
+            final StringWriter body = new StringWriter();
+            try (JsonWriter json = new JsonWriter(body)) {
+                json.beginObject()
+                        .name("base").value(gitRepository.resolveCommitName(Optional.of(base)))
+                        .name("head").value(gitRepository.resolveCommitName(Optional.of(head)));
+                json.name("modules").beginObject();
+                for(final int module : modules){
+                    json.name(moduleGraph.getModulePath(module)).value(changed.get(module));
+                }
+                json.endObject();
+                json.endObject();
+            }
+            respond(exchange, 200, body.toString());
+        }
+        catch (InvalidUserDataException e){
+            respondWithError(exchange, 400, e.getMessage());
+        }
+        catch (IOException | RuntimeException e){
+            logger.warn("Couldn't answer {}", exchange.getRequestURI(), e);
+            respondWithError(exchange, 500, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private void handleStop(final HttpExchange exchange) throws IOException {
+        if(!"POST".equals(exchange.getRequestMethod())){
+            respondWithError(exchange, 405, "Use POST");
+            return;
+        }
+        respond(exchange, 200, "{\"stopping\": true}\n");
+        stop("it was asked to");
+    }
+
+    private void checkWatchedFiles() {
+        final List<String> currentStamps = stampsOf(watchedFiles);
+        for(int i = 0; i < watchedFiles.size(); i++){
+            if(!currentStamps.get(i).equals(watchedStamps.get(i))){
+                stop(watchedFiles.get(i).getName() + " has changed and the module graph has to be built again");
+                return;
+            }
+        }
+    }
+
+    //Modification time and length, or nothing if the file doesn't exist
+    private static List<String> stampsOf(final List<File> files) {
+        final List<String> stamps = new ArrayList<>(files.size());
+        for(final File file : files){
+            stamps.add(file.isFile() ? file.lastModified() + ":" + file.length() : "");
+        }
+        return stamps;
+    }
+
+    static Map<String, String> parseQuery(final String rawQuery) throws IOException {
+        final Map<String, String> parameters = new HashMap<>();
+        if(rawQuery == null){
+            return parameters;
+        }
+        for(final String parameter : rawQuery.split("&")){
+            final int equals = parameter.indexOf('=');
+            if(equals > 0){
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8.name()),
+                        URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8.name()));
+            }
+        }
+        return parameters;
+    }
+
+    private static void respondWithError(final HttpExchange exchange, final int status, final String message) throws IOException {
+        final StringWriter body = new StringWriter();
+        try (JsonWriter json = new JsonWriter(body)) {
+            json.beginObject().name("error").value(message).endObject();
+        }
+        respond(exchange, status, body.toString());
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
+    private static class TreePair {
+        final ObjectId previousTree;
+        final ObjectId currentTree;
+
+        private TreePair(final ObjectId previousTree, final ObjectId currentTree) {
+            this.previousTree = previousTree;
+            this.currentTree = currentTree;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final TreePair that = (TreePair) o;
+            return previousTree.equals(that.previousTree) && currentTree.equals(that.currentTree);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(previousTree, currentTree);
+        }
+
+        @Override
+        public String toString() {
+            return previousTree.name() + ".." + currentTree.name();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.Directory;
+import org.gradle.api.internal.ConventionTask;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a {@link ChangeQueryServer} until it's stopped, for tools that ask which modules changed many times in a row.
+ *
+ * The port the server is listening on is written to a file, and the file is deleted when the server stops. The
+ * server stops itself when settings.gradle or the build script of a module changes. Those are inputs of the task, so
+ * with --continuous Gradle configures the build again and starts a new server with the new module graph.
+ */
+public class ChangeQueryServerTask extends ConventionTask {
+
+    private static final Logger logger = Logging.getLogger(ChangeQueryServerTask.class);
+
+    public static final String DEFAULT_PORT_FILE_LOCATION = "changeQueryServer.port";
+
+    private static final List<String> SETTINGS_FILES = Arrays.asList("settings.gradle", "settings.gradle.kts");
+    private static final List<String> BUILD_FILES = Arrays.asList("build.gradle", "build.gradle.kts");
+
+    //Everything the action needs is captured when the task is configured, so it never goes back to the project
+    private final String modulePath;
+    private final File rootDirectory;
+    private final Directory projectDirectory;
+    private final Property<ModuleGraph> moduleGraph;
+
+    private final Property<String> portFileLocation;
+    private final SetProperty<String> filePatterns;
+    private Map<String, List<String>> moduleFilePatterns = new HashMap<>();
+
+    //0 for any free port
+    private int port = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int cacheSize = ChangeQueryServer.DEFAULT_CACHE_SIZE;
+
+    public ChangeQueryServerTask() {
+        final Project project = getProject();
+        final ObjectFactory objects = project.getObjects();
+
+        this.modulePath = project.getPath();
+        this.rootDirectory = project.getRootDir();
+        this.projectDirectory = project.getLayout().getProjectDirectory();
+        //Set once every project has been configured, so the action never builds it from the project
+        this.moduleGraph = objects.property(ModuleGraph.class);
+        ModuleGraph.captureWhenTaskGraphIsReady(this, moduleGraph);
+        GitDiffService.closeWhenBuildFinishes(project);
+
+        this.portFileLocation = objects.property(String.class);
+        this.portFileLocation.set(DEFAULT_PORT_FILE_LOCATION);
+        this.filePatterns = objects.setProperty(String.class);
+        this.filePatterns.set(ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS);
+
+        //It answers questions rather than producing anything, so it always runs
+        getOutputs().upToDateWhen(task -> false);
+    }
+
+    @Internal
+    public String getPortFileLocation() {
+        return portFileLocation.get();
+    }
+
+    public void setPortFileLocation(final String portFileLocation) {
+        this.portFileLocation.set(portFileLocation == null ? DEFAULT_PORT_FILE_LOCATION : portFileLocation);
+    }
+
+    @Internal
+    public File getPortFile() {
+        return projectDirectory.file(getPortFileLocation()).getAsFile();
+    }
+
+    @Input
+    public Set<String> getFilePatterns() {
+        return filePatterns.get();
+    }
+
+    public void setFilePatterns(final List<String> filePatterns) {
+        this.filePatterns.set(filePatterns == null ? ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS : new HashSet<>(filePatterns));
+    }
+
+    public void setFilePatterns(final Provider<? extends Iterable<String>> filePatterns) {
+        this.filePatterns.set(filePatterns);
+    }
+
+    @Input
+    public Map<String, Set<String>> getModuleFilePatterns() {
+        return moduleFilePatterns.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> new HashSet<>(entry.getValue())));
+    }
+
+    public void setModuleFilePatterns(final Map<String, List<String>> moduleFilePatterns) {
+        this.moduleFilePatterns = moduleFilePatterns;
+    }
+
+    @Internal
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(final int port) {
+        this.port = port;
+    }
+
+    @Internal
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    //Pairs of trees whose changed modules are kept
+    @Internal
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(final int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    //The files the module graph is built from. They don't have to exist, a new build script changes the graph too
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public List<File> getWatchedFiles() {
+        final ModuleGraph moduleGraph = ModuleGraph.captured(getPath(), this.moduleGraph);
+        final List<File> watchedFiles = new ArrayList<>();
+        for(final String settingsFile : SETTINGS_FILES){
+            watchedFiles.add(new File(rootDirectory, settingsFile));
+        }
+        for(int module = 0; module < moduleGraph.size(); module++){
+            final File moduleDirectory = new File(rootDirectory, moduleGraph.getModuleDirectory(module));
+            for(final String buildFile : BUILD_FILES){
+                watchedFiles.add(new File(moduleDirectory, buildFile));
+            }
+        }
+        return watchedFiles;
+    }
+
+    @TaskAction
+    public void serve() throws IOException {
+
+        final ModuleGraph moduleGraph = ModuleGraph.captured(getPath(), this.moduleGraph);
+        final ModuleChangeEvaluator moduleChangeEvaluator = new ModuleChangeEvaluator(moduleGraph, getFilePatterns(), getModuleFilePatterns());
+
+        final File portFile = getPortFile();
+        try (ChangeQueryServer server = new ChangeQueryServer(
+                GitDiffService.forRootDirectory(rootDirectory).getGitRepository(),
+                moduleGraph,
+                moduleChangeEvaluator,
+                moduleGraph.indexOf(modulePath),
+                cacheSize,
+                getWatchedFiles())) {
+
+            final int boundPort = server.start(port, threads);
+            Files.write(portFile.toPath(), String.valueOf(boundPort).getBytes(StandardCharsets.UTF_8));
+            logger.lifecycle("Answering change queries on port {} of the loopback interface", boundPort);
+
+            final String reason = server.awaitStop();
+            logger.info("Change query server stopped, {}", reason);
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while answering change queries", e);
+        }
+        finally {
+            Files.deleteIfExists(portFile.toPath());
+        }
+    }
+}
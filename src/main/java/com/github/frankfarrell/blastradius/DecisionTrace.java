@@ -0,0 +1,120 @@
+package com.github.frankfarrell.blastradius;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Why each module was found to have changed or not, with only the evidence that decided it: the first path that
+ * changed the module and the pattern it matched, or the parent module it changed with.
+ *
+ * Built by {@link ModuleChangeEvaluator#explain} after the changed modules are known, so working out which modules
+ * have changed costs the same whether a trace is wanted or not. Written as JSON next to the list of changed modules.
+ */
+public class DecisionTrace {
+
+    public static final String FILE_SUFFIX = ".trace.json";
+
+    public enum Source {
+        //A path in the module matched one of its patterns
+        SELF,
+        //A path in the directory of a module it depends on matched one of its patterns
+        DEPENDENCY,
+        //Its parent module has changed
+        PARENT,
+        //What changed couldn't be worked out, so everything has
+        NO_DIFF
+    }
+
+    public static class Decision {
+
+        private final boolean changed;
+        private final Source source;
+        private final String path;
+        private final String pattern;
+        //The dependency or parent the change came through
+        private final String throughModule;
+
+        private Decision(final boolean changed, final Source source, final String path, final String pattern, final String throughModule) {
+            this.changed = changed;
+            this.source = source;
+            this.path = path;
+            this.pattern = pattern;
+            this.throughModule = throughModule;
+        }
+
+        public boolean isChanged() {
+            return changed;
+        }
+
+        public Optional<Source> getSource() {
+            return Optional.ofNullable(source);
+        }
+
+        public Optional<String> getPath() {
+            return Optional.ofNullable(path);
+        }
+
+        public Optional<String> getPattern() {
+            return Optional.ofNullable(pattern);
+        }
+
+        public Optional<String> getThroughModule() {
+            return Optional.ofNullable(throughModule);
+        }
+    }
+
+    //Sorted by module, like the list of changed modules
+    private final Map<String, Decision> decisions = new TreeMap<>();
+
+    void unchanged(final String modulePath) {
+        decisions.put(modulePath, new Decision(false, null, null, null, null));
+    }
+
+    void changedBy(final String modulePath, final Source source, final String path, final String pattern, final String throughModule) {
+        decisions.put(modulePath, new Decision(true, source, path, pattern, throughModule));
+    }
+
+    public Optional<Decision> getDecision(final String modulePath) {
+        return Optional.ofNullable(decisions.get(modulePath));
+    }
+
+    public boolean hasDecision(final String modulePath) {
+        return decisions.containsKey(modulePath);
+    }
+
+    /*
+    {"modules": {":a": {"changed": true, "source": "SELF", "path": "/a/src/main/A.java", "pattern": "/src/main/.*"}, ...}}
+     */
+    public void write(final File file) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+
+        try (JsonWriter json = new JsonWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            json.beginObject();
+            json.name("modules").beginObject();
+            for(final Map.Entry<String, Decision> entry : decisions.entrySet()){
+                final Decision decision = entry.getValue();
+                json.name(entry.getKey()).beginObject();
+                json.name("changed").value(decision.changed);
+                if(decision.source != null){
+                    json.name("source").value(decision.source.name());
+                }
+                if(decision.throughModule != null){
+                    json.name(decision.source == Source.PARENT ? "parent" : "dependency").value(decision.throughModule);
+                }
+                if(decision.path != null){
+                    json.name("path").value(decision.path);
+                    json.name("pattern").value(decision.pattern);
+                }
+                json.endObject();
+            }
+            json.endObject();
+            json.endObject();
+        }
+    }
+}
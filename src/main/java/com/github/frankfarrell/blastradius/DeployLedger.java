@@ -0,0 +1,110 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The commit each module was last deployed from, used by the LEDGER diff strategy.
+ *
+ * The file has a line per module in the same format as the file ProjectModulesChangedTask writes, eg
+ * ":moduleA,3f2c0a1...". A module that isn't in the ledger has never been deployed.
+ */
+public class DeployLedger {
+
+    private static final Logger logger = Logging.getLogger(DeployLedger.class);
+
+    public static final String DEFAULT_LEDGER_LOCATION = "deployLedger";
+    public static final String LOCK_FILE_SUFFIX = ".lock";
+
+    private final SortedMap<String, String> lastDeployedCommits;
+
+    public DeployLedger(final Map<String, String> lastDeployedCommits) {
+        this.lastDeployedCommits = Collections.unmodifiableSortedMap(new TreeMap<>(lastDeployedCommits));
+    }
+
+    /*
+    An empty ledger if the file doesn't exist yet
+     */
+    public static DeployLedger read(final File file) throws IOException {
+        if(!file.isFile()){
+            logger.info("No deploy ledger at {}", file);
+            return new DeployLedger(Collections.emptyMap());
+        }
+
+        final Map<String, String> lastDeployedCommits = new HashMap<>();
+        for(final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)){
+            if(line.trim().isEmpty()){
+                continue;
+            }
+            final String[] moduleAndCommit = line.trim().split(",");
+            if(moduleAndCommit.length != 2){
+                throw new InvalidUserDataException("Invalid line in deploy ledger " + file + ": " + line);
+            }
+            lastDeployedCommits.put(moduleAndCommit[0], moduleAndCommit[1]);
+        }
+        return new DeployLedger(lastDeployedCommits);
+    }
+
+    public Optional<String> getLastDeployedCommit(final String modulePath) {
+        return Optional.ofNullable(lastDeployedCommits.get(modulePath));
+    }
+
+    public SortedMap<String, String> getLastDeployedCommits() {
+        return lastDeployedCommits;
+    }
+
+    /*
+    A copy of this ledger with modulePaths last deployed from commit
+     */
+    public DeployLedger withDeployed(final Collection<String> modulePaths, final String commit) {
+        final Map<String, String> updated = new HashMap<>(lastDeployedCommits);
+        modulePaths.forEach(modulePath -> updated.put(modulePath, commit));
+        return new DeployLedger(updated);
+    }
+
+    /*
+    Records modulePaths as last deployed from commit in the ledger file. The ledger is read, updated and written while
+    holding a lock on a file next to it, so deploys recorded at the same time, by this or another build, are all kept
+     */
+    public static void recordDeployed(final File file, final Collection<String> modulePaths, final String commit) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+        final File lockFile = new File(directory, file.getName() + LOCK_FILE_SUFFIX);
+
+        //File locks are held by the process, so threads of the same one also have to wait for each other
+        synchronized (DeployLedger.class) {
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock()) {
+                read(file).withDeployed(modulePaths, commit).write(file);
+            }
+        }
+    }
+
+    public void write(final File file) throws IOException {
+        final StringBuilder content = new StringBuilder();
+        lastDeployedCommits.forEach((modulePath, commit) -> content.append(modulePath).append(',').append(commit).append('\n'));
+
+        final File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+        //Written to a temporary file first so a failed write never leaves a partial ledger, see recordDeployed for concurrent ones
+        final File temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            Files.write(temporaryFile.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+        }
+    }
+}
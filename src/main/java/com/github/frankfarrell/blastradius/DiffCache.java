@@ -0,0 +1,208 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Changed paths between two trees, kept on disk so that separate Gradle invocations on the same checkout don't
+ * diff the same trees again.
+ *
+ * There is one file per pair of trees. It holds the number of paths, the offset of each path and then the paths
+ * themselves as UTF-8. Files are memory mapped and paths are only decoded when they are read. When the cache grows
+ * past its size limit the least recently used files are deleted.
+ */
+public class DiffCache {
+
+    private static final Logger logger = Logging.getLogger(DiffCache.class);
+
+    public static final long DEFAULT_MAX_SIZE_IN_BYTES = 64L * 1024 * 1024;
+
+    private static final int MAGIC = 0x42524443; //BRDC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final String SUFFIX = ".paths";
+
+    private final File directory;
+    private final long maxSizeInBytes;
+
+    public DiffCache(final File directory, final long maxSizeInBytes) {
+        this.directory = directory;
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    public DiffCache(final File directory) {
+        this(directory, DEFAULT_MAX_SIZE_IN_BYTES);
+    }
+
+    public Optional<List<String>> get(final ObjectId previousTree, final ObjectId currentTree) {
+        return get(previousTree, currentTree, GitRepository.WHOLE_REPOSITORY);
+    }
+
+    public void put(final ObjectId previousTree, final ObjectId currentTree, final List<String> paths) {
+        put(previousTree, currentTree, GitRepository.WHOLE_REPOSITORY, paths);
+    }
+
+    /*
+    A diff limited to pathPrefixes is cached separately from one of the whole repository
+     */
+    public Optional<List<String>> get(final ObjectId previousTree, final ObjectId currentTree, final SortedSet<String> pathPrefixes) {
+        return get(key(previousTree, currentTree, pathPrefixes));
+    }
+
+    public void put(final ObjectId previousTree, final ObjectId currentTree, final SortedSet<String> pathPrefixes, final List<String> paths) {
+        put(key(previousTree, currentTree, pathPrefixes), paths);
+    }
+
+    Optional<List<String>> get(final String key) {
+        final File file = new File(directory, key + SUFFIX);
+        if(!file.isFile()){
+            return Optional.empty();
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+
+            //The mapping stays valid after the channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+                logger.info("Ignoring unreadable diff cache entry {}", file);
+                return Optional.empty();
+            }
+
+            //Least recently used files are evicted first
+            file.setLastModified(System.currentTimeMillis());
+
+            return Optional.of(new MappedPathList(buffer, buffer.getInt(8)));
+        }
+        catch (IOException | RuntimeException e){
+            logger.info("Couldn't read diff cache entry {}", file, e);
+            return Optional.empty();
+        }
+    }
+
+    void put(final String key, final List<String> paths) {
+        final byte[][] encodedPaths = new byte[paths.size()][];
+        int dataSize = 0;
+        for(int i = 0; i < paths.size(); i++){
+            encodedPaths[i] = paths.get(i).getBytes(StandardCharsets.UTF_8);
+            dataSize += encodedPaths[i].length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * (paths.size() + 1) + dataSize);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(paths.size());
+        int offset = 0;
+        for(final byte[] encodedPath : encodedPaths){
+            buffer.putInt(offset);
+            offset += encodedPath.length;
+        }
+        buffer.putInt(offset);
+        for(final byte[] encodedPath : encodedPaths){
+            buffer.put(encodedPath);
+        }
+
+        try {
+            Files.createDirectories(directory.toPath());
+            //Written to a temporary file first so other processes never see a partial entry
+            final File temporaryFile = File.createTempFile(key, ".tmp", directory);
+            Files.write(temporaryFile.toPath(), buffer.array());
+            Files.move(temporaryFile.toPath(), new File(directory, key + SUFFIX).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            evict();
+        }
+        catch (IOException e){
+            //The cache is only an optimisation
+            logger.info("Couldn't write diff cache entry {}", key, e);
+        }
+    }
+
+    private void evict() {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if(files == null){
+            return;
+        }
+        long totalSize = Arrays.stream(files).mapToLong(File::length).sum();
+        if(totalSize <= maxSizeInBytes){
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for(final File file : files){
+            if(totalSize <= maxSizeInBytes){
+                break;
+            }
+            final long length = file.length();
+            if(file.delete()){
+                logger.debug("Evicted diff cache entry {}", file);
+                totalSize -= length;
+            }
+        }
+    }
+
+    private static String key(final ObjectId previousTree, final ObjectId currentTree, final SortedSet<String> pathPrefixes) {
+        final String key = previousTree.name() + "-" + currentTree.name();
+        if(pathPrefixes.contains("")){
+            return key;
+        }
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        pathPrefixes.forEach(prefix -> digest.update((prefix + "\n").getBytes(StandardCharsets.UTF_8)));
+        return key + "-" + ObjectId.fromRaw(digest.digest()).abbreviate(12).name();
+    }
+
+    /*
+    Immutable view over a cache file, decoding each path when it is asked for
+     */
+    private static class MappedPathList extends AbstractList<String> implements RandomAccess {
+
+        private final ByteBuffer buffer;
+        private final int size;
+        private final int dataStart;
+
+        private MappedPathList(final ByteBuffer buffer, final int size) {
+            this.buffer = buffer;
+            this.size = size;
+            this.dataStart = HEADER_SIZE + 4 * (size + 1);
+        }
+
+        @Override
+        public String get(final int index) {
+            if(index < 0 || index >= size){
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            final int start = buffer.getInt(HEADER_SIZE + 4 * index);
+            final int end = buffer.getInt(HEADER_SIZE + 4 * (index + 1));
+            final byte[] bytes = new byte[end - start];
+            //Absolute reads via a duplicate, so concurrent readers don't share a position
+            final ByteBuffer view = buffer.duplicate();
+            view.position(dataStart + start);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
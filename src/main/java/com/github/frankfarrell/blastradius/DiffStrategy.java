@@ -5,6 +5,8 @@ public enum DiffStrategy {
     JENKINS_LAST_COMMIT,
     PREVIOUS_TAG,
     PREVIOUS_COMMIT,
-    SPECIFIC_COMMIT;
+    SPECIFIC_COMMIT,
+    LEDGER,
+    WORKING_TREE;
 
 }
@@ -0,0 +1,260 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.InvalidUserDataException;
+
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * A set of file patterns compiled into a single regular expression, so a path is matched against all of them in one pass.
+ *
+ * Patterns are regular expressions unless they start with "glob:", in which case they are unix glob patterns:
+ * "*" and "?" do not cross directory boundaries, "**" does, and "{a,b}" matches either alternative.
+ * A "regex:" prefix is also accepted. This is the same syntax as {@link java.nio.file.FileSystem#getPathMatcher(String)}.
+ *
+ * Matchers are cached by pattern set, so all modules using the default patterns share one compiled matcher. The cache
+ * lives as long as the Gradle daemon, but only softly references the matchers, so they're dropped when memory runs low.
+ */
+public class FilePatternMatcher {
+
+    public static final String GLOB_SYNTAX = "glob:";
+    public static final String REGEX_SYNTAX = "regex:";
+
+    private static final Map<Set<String>, SoftReference<FilePatternMatcher>> cache = new ConcurrentHashMap<>();
+
+    private final Set<String> filePatterns;
+    private final Pattern pattern;
+    private final Set<String> directoryPrefixes;
+
+    //Each pattern on its own, only compiled to tell which one matched, see findMatchingPattern
+    private volatile Map<String, Pattern> separatePatterns;
+
+    private FilePatternMatcher(final Set<String> filePatterns) {
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.PATTERN_COMPILATION)) {
+            this.filePatterns = filePatterns;
+            final List<String> regexes = filePatterns.stream()
+                    .map(FilePatternMatcher::toRegex)
+                    .collect(toList());
+            this.pattern = Pattern.compile(regexes.stream()
+                    .map(regex -> "(?:" + regex + ")")
+                    .collect(joining("|")));
+            this.directoryPrefixes = Collections.unmodifiableSet(regexes.stream()
+                    .map(FilePatternMatcher::literalDirectoryPrefix)
+                    .collect(toSet()));
+            Metrics.count(Metrics.Counter.PATTERNS_COMPILED, filePatterns.size());
+        }
+    }
+
+    public static FilePatternMatcher forPatterns(final Set<String> filePatterns) {
+        final SoftReference<FilePatternMatcher> cached = cache.get(filePatterns);
+        final FilePatternMatcher cachedMatcher = cached == null ? null : cached.get();
+        if(cachedMatcher != null){
+            return cachedMatcher;
+        }
+        //Copied so the key can't change under the cache
+        final Set<String> key = Collections.unmodifiableSet(new HashSet<>(filePatterns));
+        final FilePatternMatcher matcher = new FilePatternMatcher(key);
+        cache.put(key, new SoftReference<>(matcher));
+        return matcher;
+    }
+
+    public Set<String> getFilePatterns() {
+        return filePatterns;
+    }
+
+    /*
+    Every path these patterns can match is in one of these directories, relative to the module.
+    An empty string means the patterns can match anywhere in the module
+     */
+    public Set<String> getDirectoryPrefixes() {
+        return directoryPrefixes;
+    }
+
+    public boolean matches(final CharSequence path) {
+        return pattern.matcher(path).matches();
+    }
+
+    /*
+    Matches only the part of the path from start onwards
+     */
+    public boolean matches(final CharSequence path, final int start) {
+        return matches(pattern.matcher(path), path, start);
+    }
+
+    /*
+    A matcher for these patterns that can be reused for any number of paths, see matches(Matcher, CharSequence, int)
+     */
+    public Matcher newMatcher() {
+        return pattern.matcher("");
+    }
+
+    /*
+    Like matches(path, start), but resets a matcher from newMatcher rather than creating one
+     */
+    public static boolean matches(final Matcher matcher, final CharSequence path, final int start) {
+        return matcher.reset(path).region(start, path.length()).matches();
+    }
+
+    /*
+    Which of the patterns matches the part of the path from start onwards, eg to explain why a module has changed.
+    Much slower than matches, since every pattern is tried on its own
+     */
+    public Optional<String> findMatchingPattern(final CharSequence path, final int start) {
+        for(final Map.Entry<String, Pattern> entry : getSeparatePatterns().entrySet()){
+            if(entry.getValue().matcher(path).region(start, path.length()).matches()){
+                return Optional.of(entry.getKey());
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Map<String, Pattern> getSeparatePatterns() {
+        if(separatePatterns == null){
+            //In a fixed order, so the same pattern is reported every time
+            final Map<String, Pattern> patterns = new TreeMap<>();
+            for(final String filePattern : filePatterns){
+                patterns.put(filePattern, Pattern.compile(toRegex(filePattern)));
+            }
+            separatePatterns = patterns;
+        }
+        return separatePatterns;
+    }
+
+    static String toRegex(final String filePattern) {
+        final String regex;
+        if(filePattern.startsWith(GLOB_SYNTAX)){
+            final String glob = filePattern.substring(GLOB_SYNTAX.length());
+            //Like the other patterns, globs are relative to the module
+            regex = globToRegex(glob.startsWith("/") ? glob : "/" + glob);
+        }
+        else if(filePattern.startsWith(REGEX_SYNTAX)){
+            regex = filePattern.substring(REGEX_SYNTAX.length()).replace("//", "/");
+        }
+        else {
+            regex = filePattern.replace("//", "/");
+        }
+
+        try {
+            Pattern.compile(regex);
+        }
+        catch (PatternSyntaxException e){
+            throw new InvalidUserDataException("Invalid file pattern " + filePattern + ": " + e.getDescription(), e);
+        }
+        return regex;
+    }
+
+    /*
+    The directory part of the literal text the regex starts with, eg /src/main for /src/main/.*
+     */
+    static String literalDirectoryPrefix(final String regex) {
+        //An alternation could start anywhere
+        if(regex.indexOf('|') >= 0){
+            return "";
+        }
+
+        final StringBuilder literal = new StringBuilder();
+        for(int i = 0; i < regex.length(); i++){
+            final char c = regex.charAt(i);
+            if(c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))){
+                literal.append(regex.charAt(++i));
+            }
+            else if("?*+{".indexOf(c) >= 0){
+                //The quantified character is optional
+                if(literal.length() > 0){
+                    literal.setLength(literal.length() - 1);
+                }
+                break;
+            }
+            else if(".[]()^$\\".indexOf(c) >= 0){
+                break;
+            }
+            else {
+                literal.append(c);
+            }
+        }
+
+        final int lastSeparator = literal.lastIndexOf("/");
+        return lastSeparator <= 0 ? "" : literal.substring(0, lastSeparator);
+    }
+
+    static String globToRegex(final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        boolean inClass = false;
+
+        for(int i = 0; i < glob.length(); i++){
+            final char c = glob.charAt(i);
+            switch (c){
+                case '*':
+                    if(i + 1 < glob.length() && glob.charAt(i + 1) == '*'){
+                        i++;
+                        //"**/" also matches no directories at all
+                        if(i + 1 < glob.length() && glob.charAt(i + 1) == '/'){
+                            i++;
+                            regex.append("(?:.*/)?");
+                        }
+                        else {
+                            regex.append(".*");
+                        }
+                    }
+                    else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    inClass = true;
+                    regex.append('[');
+                    if(i + 1 < glob.length() && glob.charAt(i + 1) == '!'){
+                        i++;
+                        regex.append('^');
+                    }
+                    break;
+                case ']':
+                    inClass = false;
+                    regex.append(']');
+                    break;
+                case '{':
+                    inGroup = true;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    inGroup = false;
+                    regex.append(')');
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '\\':
+                    if(i + 1 < glob.length()){
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    if(inClass || Character.isLetterOrDigit(c) || c == '/'){
+                        regex.append(c);
+                    }
+                    else {
+                        regex.append('\\').append(c);
+                    }
+            }
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,417 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Shares one opened git repository, and the diffs computed with it, between every task in a build.
+ *
+ * Each pair of commits is only diffed once, however many tasks ask for it and from however many threads. The
+ * lists of paths handed out are immutable. The service is closed, and the repository with it, when the build finishes.
+ */
+public class GitDiffService implements AutoCloseable {
+
+    private static final Logger logger = Logging.getLogger(GitDiffService.class);
+
+    static final String UNRESOLVED_COMMIT_IDS = "unresolved";
+
+    private static final Map<File, GitDiffService> services = new ConcurrentHashMap<>();
+
+    private final File rootDirectory;
+    private final GitRepository gitRepository;
+
+    private final ConcurrentMap<DiffRequest, Future<Optional<GitRepository.CommitIds>>> commitIds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<PathsRequest, Future<Optional<List<String>>>> pathsWithDiff = new ConcurrentHashMap<>();
+
+    GitDiffService(final File rootDirectory, final GitRepository gitRepository) {
+        this.rootDirectory = rootDirectory;
+        this.gitRepository = gitRepository;
+    }
+
+    //Root directories whose service is closed when the current build finishes
+    private static final Set<File> closedWhenBuildFinishes = ConcurrentHashMap.newKeySet();
+
+    //Diffs started before any task asks for them, see prefetch
+    private static ExecutorService prefetchExecutor;
+
+    /*
+    Returns the service for the build that project belongs to, opening the repository on first use
+     */
+    public static GitDiffService forBuild(final Project project) {
+        closeWhenBuildFinishes(project);
+        return forRootDirectory(project.getRootDir());
+    }
+
+    /*
+    For task actions, which shouldn't touch the project. Whoever creates the task has to have called
+    closeWhenBuildFinishes, so the repository isn't kept open with stale results into the next build
+     */
+    public static GitDiffService forRootDirectory(final File rootDirectory) {
+        return services.computeIfAbsent(rootDirectory, directory -> {
+            try {
+                return new GitDiffService(directory, new GitRepository(directory));
+            } catch (IOException e) {
+                throw new GradleException("Could not open git repository for " + directory, e);
+            }
+        });
+    }
+
+    public static void closeWhenBuildFinishes(final Project project) {
+        final File rootDirectory = project.getRootDir();
+        if(closedWhenBuildFinishes.add(rootDirectory)){
+            project.getGradle().buildFinished(buildResult -> {
+                closedWhenBuildFinishes.remove(rootDirectory);
+                Optional.ofNullable(services.get(rootDirectory)).ifPresent(GitDiffService::close);
+                Metrics.reset();
+            });
+        }
+    }
+
+    public GitRepository getGitRepository() {
+        return gitRepository;
+    }
+
+    public Optional<GitRepository.CommitIds> getCommitIds(final DiffStrategy diffStrategy, final Optional<String> previousCommit) throws IOException {
+        return getOnce(commitIds, new DiffRequest(diffStrategy, previousCommit.orElse(null), ""),
+                () -> gitRepository.getCommitIds(diffStrategy, previousCommit));
+    }
+
+    /*
+    The commits PREVIOUS_TAG resolves to with only the version tags that start with tagPrefix, see
+    GitRepository#getCommitIdsFromPreviousTag. The empty prefix is the same as PREVIOUS_TAG
+     */
+    public Optional<GitRepository.CommitIds> getCommitIdsFromPreviousTag(final String tagPrefix) throws IOException {
+        if(tagPrefix.isEmpty()){
+            return getCommitIds(DiffStrategy.PREVIOUS_TAG, Optional.empty());
+        }
+        return getOnce(commitIds, new DiffRequest(DiffStrategy.PREVIOUS_TAG, null, tagPrefix),
+                () -> gitRepository.getCommitIdsFromPreviousTag(tagPrefix));
+    }
+
+    /*
+    Identifies the diff a strategy resolves to, eg for use as a task input
+     */
+    public String getCommitIdsDescription(final DiffStrategy diffStrategy, final Optional<String> previousCommit) {
+        try {
+            return getCommitIds(diffStrategy, previousCommit)
+                    .map(GitRepository.CommitIds::toString)
+                    .orElse(UNRESOLVED_COMMIT_IDS);
+        } catch (IOException e) {
+            throw new GradleException("Could not resolve commits for " + diffStrategy, e);
+        }
+    }
+
+    /*
+    Identifies the diff of each tag prefix, eg "payments-=<previous>..<current>,terraform/=unresolved"
+     */
+    public String getCommitIdsDescriptionFromPreviousTags(final Set<String> tagPrefixes) {
+        final StringBuilder description = new StringBuilder();
+        for(final String tagPrefix : new TreeSet<>(tagPrefixes)){
+            try {
+                description.append(description.length() == 0 ? "" : ",")
+                        .append(tagPrefix).append('=')
+                        .append(getCommitIdsFromPreviousTag(tagPrefix)
+                                .map(GitRepository.CommitIds::toString)
+                                .orElse(UNRESOLVED_COMMIT_IDS));
+            } catch (IOException e) {
+                throw new GradleException("Could not resolve commits for the previous " + tagPrefix + " tag", e);
+            }
+        }
+        return description.toString();
+    }
+
+    /*
+    Same contract as GitRepository#getPathsThatHaveChanged, but computed at most once per build for each pair of commits
+     */
+    public Optional<List<String>> getPathsThatHaveChanged(final DiffStrategy diffStrategy, final Optional<String> previousCommit) throws IOException {
+        return getPathsThatHaveChanged(diffStrategy, previousCommit, GitRepository.WHOLE_REPOSITORY);
+    }
+
+    /*
+    Only lists paths under pathPrefixes, see GitRepository#getPathsThatHaveChanged
+     */
+    public Optional<List<String>> getPathsThatHaveChanged(final DiffStrategy diffStrategy,
+                                                          final Optional<String> previousCommit,
+                                                          final SortedSet<String> pathPrefixes) throws IOException {
+        final Optional<GitRepository.CommitIds> resolvedCommitIds = getCommitIds(diffStrategy, previousCommit);
+
+        if(!resolvedCommitIds.isPresent()){
+            return Optional.empty();
+        }
+        return getPathsThatHaveChanged(resolvedCommitIds.get(), pathPrefixes);
+    }
+
+    /*
+    For PREVIOUS_TAG with a series of version tags per module, each with its own prefix, eg for modules that are
+    released on their own. The paths that changed since the previous tag of each prefix. Prefixes whose tags
+    resolve to the same commits share one diff, and get the same list
+     */
+    public Map<String, Optional<List<String>>> getPathsThatHaveChangedSincePreviousTags(final Set<String> tagPrefixes,
+                                                                                       final SortedSet<String> pathPrefixes) throws IOException {
+        final Map<String, Optional<List<String>>> result = new HashMap<>();
+        for(final String tagPrefix : tagPrefixes){
+            final Optional<GitRepository.CommitIds> resolvedCommitIds = getCommitIdsFromPreviousTag(tagPrefix);
+            //Tags of different prefixes are different objects, even on the same commits
+            result.put(tagPrefix, resolvedCommitIds.isPresent()
+                    ? getPathsThatHaveChanged(gitRepository.peel(resolvedCommitIds.get()), pathPrefixes)
+                    : Optional.empty());
+        }
+        return result;
+    }
+
+    /*
+    The paths that changed in each of the modules, each since the previous tag of the prefix it has in
+    moduleTagPrefixes, or since the previous plain version tag if it has none
+     */
+    public Function<String, Optional<List<String>>> getPathsThatHaveChangedSincePreviousTagOfModule(final Map<String, String> moduleTagPrefixes,
+                                                                                                     final Collection<String> modulePaths,
+                                                                                                     final SortedSet<String> pathPrefixes) throws IOException {
+        final Map<String, Optional<List<String>>> pathsWithDiffByTagPrefix =
+                getPathsThatHaveChangedSincePreviousTags(getTagPrefixes(moduleTagPrefixes, modulePaths), pathPrefixes);
+        return modulePath -> pathsWithDiffByTagPrefix.get(moduleTagPrefixes.getOrDefault(modulePath, ""));
+    }
+
+    //The prefixes of the tags the modules are compared with, the empty prefix for modules without one
+    public static Set<String> getTagPrefixes(final Map<String, String> moduleTagPrefixes, final Collection<String> modulePaths) {
+        final Set<String> tagPrefixes = new HashSet<>();
+        for(final String modulePath : modulePaths){
+            tagPrefixes.add(moduleTagPrefixes.getOrDefault(modulePath, ""));
+        }
+        return tagPrefixes;
+    }
+
+    private Optional<List<String>> getPathsThatHaveChanged(final GitRepository.CommitIds resolvedCommitIds,
+                                                           final SortedSet<String> pathPrefixes) throws IOException {
+
+        //The whole repository may already be being diffed, eg by prefetch, and it's quicker to wait for it
+        final Optional<Future<Optional<List<String>>>> wholeRepository = pathPrefixes.equals(GitRepository.WHOLE_REPOSITORY)
+                ? Optional.empty()
+                : Optional.ofNullable(pathsWithDiff.get(new PathsRequest(resolvedCommitIds, GitRepository.WHOLE_REPOSITORY)));
+
+        return getOnce(pathsWithDiff, new PathsRequest(resolvedCommitIds, pathPrefixes), () -> {
+            if(wholeRepository.isPresent()){
+                final Optional<Optional<List<String>>> wholeRepositoryPaths = await(wholeRepository.get());
+                if(wholeRepositoryPaths.isPresent()){
+                    return wholeRepositoryPaths.get().map(paths -> Collections.unmodifiableList(underPrefixes(paths, pathPrefixes)));
+                }
+            }
+            return gitRepository.getPathsThatHaveChanged(Optional.of(resolvedCommitIds), pathPrefixes).map(Collections::unmodifiableList);
+        });
+    }
+
+    /*
+    Starts resolving the commits of a strategy and diffing the whole repository on a background thread, so that git
+    is read while the build is still being configured. Anything that asks for the same commits later waits for the
+    diff rather than doing its own, and only keeps the paths under its prefixes
+     */
+    public Future<?> prefetch(final DiffStrategy diffStrategy, final Optional<String> previousCommit) {
+        logger.info("Prefetching the diff for {}", diffStrategy);
+        return getPrefetchExecutor().submit(() -> {
+            try {
+                getPathsThatHaveChanged(diffStrategy, previousCommit);
+            } catch (IOException | RuntimeException e) {
+                //Whatever needs the diff does it again, and reports the failure if there is one
+                logger.info("Couldn't prefetch the diff for {}: {}", diffStrategy, e.getMessage());
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getPrefetchExecutor() {
+        if(prefetchExecutor == null){
+            prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "blast-radius-prefetch");
+                //Never keeps the daemon from stopping
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /*
+    Paths are absolute with a leading "/", prefixes are directories without one
+     */
+    static List<String> underPrefixes(final List<String> paths, final SortedSet<String> pathPrefixes) {
+        if(pathPrefixes.contains("")){
+            return paths;
+        }
+        final List<String> result = new ArrayList<>();
+        for(final String path : paths){
+            for(final String prefix : pathPrefixes){
+                if(path.startsWith(prefix, 1) && (path.length() == prefix.length() + 1 || path.charAt(prefix.length() + 1) == '/')){
+                    result.add(path);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+    See GitRepository#getPathsThatHaveChangedSince
+     */
+    public Map<String, List<String>> getPathsThatHaveChangedSince(final Set<String> baseCommits, final SortedSet<String> pathPrefixes) throws IOException {
+        return gitRepository.getPathsThatHaveChangedSince(baseCommits, pathPrefixes);
+    }
+
+    /*
+    Narrows pathPrefixes down to the subtrees that differ between the commits, see GitRepository#getChangedSubtrees.
+    Nothing outside them can have a diff, so an empty set means that nothing under pathPrefixes has changed
+     */
+    public Optional<SortedSet<String>> getChangedSubtrees(final DiffStrategy diffStrategy,
+                                                          final Optional<String> previousCommit,
+                                                          final SortedSet<String> pathPrefixes) throws IOException {
+        return gitRepository.getChangedSubtrees(getCommitIds(diffStrategy, previousCommit), pathPrefixes);
+    }
+
+    /*
+    Stops at the first changed path predicate accepts, see GitRepository#anyPathHasChanged.
+    Uses the list of paths if another task in the build has already diffed the same commits
+     */
+    public Optional<Boolean> anyPathHasChanged(final DiffStrategy diffStrategy,
+                                               final Optional<String> previousCommit,
+                                               final SortedSet<String> pathPrefixes,
+                                               final Predicate<CharSequence> predicate) throws IOException {
+        final Optional<GitRepository.CommitIds> resolvedCommitIds = getCommitIds(diffStrategy, previousCommit);
+
+        if(!resolvedCommitIds.isPresent()){
+            return Optional.empty();
+        }
+
+        final Optional<List<String>> computedPaths = getIfDone(new PathsRequest(resolvedCommitIds.get(), pathPrefixes))
+                .map(Optional::of)
+                .orElseGet(() -> getIfDone(new PathsRequest(resolvedCommitIds.get(), GitRepository.WHOLE_REPOSITORY)));
+
+        if(computedPaths.isPresent()){
+            return Optional.of(computedPaths.get().stream().anyMatch(predicate));
+        }
+        return gitRepository.anyPathHasChanged(resolvedCommitIds, pathPrefixes, predicate);
+    }
+
+    private Optional<List<String>> getIfDone(final PathsRequest pathsRequest) {
+        final Future<Optional<List<String>>> result = pathsWithDiff.get(pathsRequest);
+        if(result == null || !result.isDone()){
+            return Optional.empty();
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return Optional.empty();
+        }
+    }
+
+    /*
+    The result of a diff another thread is doing, or Optional.empty() if it failed
+     */
+    private static <V> Optional<V> await(final Future<V> result) {
+        try {
+            return Optional.of(result.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted waiting for git diff", e);
+        } catch (ExecutionException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void close() {
+        if(services.remove(rootDirectory, this)){
+            logger.debug("Closing git repository for {}", rootDirectory);
+            gitRepository.close();
+        }
+    }
+
+    /*
+    The first caller for a key computes the value, concurrent callers for the same key wait for it
+     */
+    private static <K, V> V getOnce(final ConcurrentMap<K, Future<V>> results, final K key, final Callable<V> computation) throws IOException {
+        final FutureTask<V> task = new FutureTask<>(computation);
+        final Future<V> existing = results.putIfAbsent(key, task);
+        final Future<V> result;
+        if(existing == null){
+            task.run();
+            result = task;
+        }
+        else {
+            result = existing;
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted waiting for git diff", e);
+        } catch (ExecutionException e) {
+            //Don't cache failures
+            results.remove(key, result);
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new GradleException("Failed to compute git diff", e.getCause());
+        }
+    }
+
+    private static class DiffRequest {
+        final DiffStrategy diffStrategy;
+        final String previousCommit;
+        final String tagPrefix;
+
+        private DiffRequest(final DiffStrategy diffStrategy, final String previousCommit, final String tagPrefix) {
+            this.diffStrategy = diffStrategy;
+            this.previousCommit = previousCommit;
+            this.tagPrefix = tagPrefix;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final DiffRequest that = (DiffRequest) o;
+            return diffStrategy == that.diffStrategy &&
+                    Objects.equals(previousCommit, that.previousCommit) &&
+                    tagPrefix.equals(that.tagPrefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(diffStrategy, previousCommit, tagPrefix);
+        }
+    }
+
+    private static class PathsRequest {
+        final GitRepository.CommitIds commitIds;
+        final SortedSet<String> pathPrefixes;
+
+        private PathsRequest(final GitRepository.CommitIds commitIds, final SortedSet<String> pathPrefixes) {
+            this.commitIds = commitIds;
+            this.pathPrefixes = pathPrefixes;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final PathsRequest that = (PathsRequest) o;
+            return Objects.equals(commitIds, that.commitIds) &&
+                    Objects.equals(pathPrefixes, that.pathPrefixes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(commitIds, pathPrefixes);
+        }
+    }
+}
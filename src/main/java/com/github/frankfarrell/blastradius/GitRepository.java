@@ -4,43 +4,94 @@ import com.github.zafarkhaja.semver.Version;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.IndexDiffFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
  * Created by frankfarrell on 13/10/2017
  *
  */
-public class GitRepository {
+public class GitRepository implements AutoCloseable {
 
     private static final Logger logger = Logging.getLogger(GitRepository.class);
 
+    static final String WORKING_TREE_NAME = "working-tree";
+
+    public static final SortedSet<String> WHOLE_REPOSITORY = Collections.unmodifiableSortedSet(new TreeSet<>(Collections.singleton("")));
+
+    private static final String DIFF_CACHE_DIRECTORY = "blast-radius/diff-cache";
+
     private final Repository repository;
 
+    //Only used for repositories this class opens itself
+    private final Optional<DiffCache> diffCache;
+
     //Used for lazy evaluation
     protected Optional<Version> headVersion;
+    //By tag prefix, "" for plain version tags
+    private final Map<String, VersionTagIndex> versionTagIndexes = new HashMap<>();
 
     public GitRepository() throws IOException {
-        final FileRepositoryBuilder repositoryBuilder = new FileRepositoryBuilder();
-        repositoryBuilder.findGitDir();
-        this.repository = repositoryBuilder.build();
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.REPOSITORY_DISCOVERY)) {
+            final FileRepositoryBuilder repositoryBuilder = new FileRepositoryBuilder();
+            repositoryBuilder.findGitDir();
+            this.repository = repositoryBuilder.build();
+            this.diffCache = Optional.of(new DiffCache(new File(repository.getDirectory(), DIFF_CACHE_DIRECTORY)));
+        }
+    }
+
+    /*
+    Looks for the git directory in directory and its parents
+     */
+    public GitRepository(final File directory) throws IOException {
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.REPOSITORY_DISCOVERY)) {
+            //Opened once per daemon, see WarmRepositoryCache
+            this.repository = WarmRepositoryCache.open(directory);
+            this.diffCache = Optional.of(new DiffCache(new File(repository.getDirectory(), DIFF_CACHE_DIRECTORY)));
+        }
     }
 
     public GitRepository(final Repository repository){
         this.repository = repository;
+        this.diffCache = Optional.empty();
+    }
+
+    public GitRepository(final Repository repository, final DiffCache diffCache){
+        this.repository = repository;
+        this.diffCache = Optional.of(diffCache);
     }
 
     /*
@@ -53,43 +104,36 @@ public class GitRepository {
     }
 
     public Optional<List<String>> getPathsThatHaveChanged(final DiffStrategy diffStrategy, final Optional<String> previousCommit) throws IOException, GitAPIException {
+        return getPathsThatHaveChanged(getCommitIds(diffStrategy, previousCommit));
+    }
 
-        logger.info("Currently on branch {}", repository.getBranch());
-
-        final Optional<CommitIds> commitIds;
-
-        //TODO Consider if we want fallbacks here or not -ffarrell
-        switch (diffStrategy){
-            case JENKINS_LAST_COMMIT:
-                commitIds = getCommitIdsFromJenkinsEnvVar();
-                break;
-            case PREVIOUS_TAG:
-                commitIds = getCommitIdsFromPreviousTag();
-                break;
+    public Optional<List<String>> getPathsThatHaveChanged(final Optional<CommitIds> commitIds) {
+        return getPathsThatHaveChanged(commitIds, WHOLE_REPOSITORY);
+    }
 
-            case PREVIOUS_COMMIT:
-                commitIds = getCommitIdsFromPreviousCommit();
-                break;
-            case SPECIFIC_COMMIT:
-                if(previousCommit.isPresent()){
-                    commitIds = Optional.of(new CommitIds(repository.resolve(previousCommit.get()) , repository.resolve(Constants.HEAD)));
-                }
-                else{
-                    throw new InvalidUserDataException("previousCommit hash must be specified if the SPECIFIC_COMMIT diff strategy is used");
-                }
-                break;
-            default:
-                throw new RuntimeException("This is impossible, but it makes the compiler happy");
-        }
+    /*
+    Only paths under one of pathPrefixes are listed, and git doesn't look at any other part of the trees.
+    Prefixes are directories relative to the root of the repository, without a leading "/"
+     */
+    public Optional<List<String>> getPathsThatHaveChanged(final Optional<CommitIds> commitIds, final SortedSet<String> pathPrefixes) {
 
         if(commitIds.isPresent()){
             logger.info("Prev commit id: {}", commitIds.get().previousCommit);
             logger.info("Current commit id: {}", commitIds.get().currentCommit);
 
             try{
-                final List<String> pathsWithDiff = getPathsWithDiff(repository,
+                if(commitIds.get().isWorkingTree()){
+                    final List<String> pathsWithDiff = new ArrayList<>();
+                    anyWorkingTreePathHasChanged(commitIds.get().previousCommit, pathPrefixes, path -> {
+                        pathsWithDiff.add(path.toString());
+                        return false;
+                    });
+                    return Optional.of(pathsWithDiff);
+                }
+                final List<String> pathsWithDiff = getPathsWithDiff(
                         commitIds.get().previousCommit,
-                        commitIds.get().currentCommit);
+                        commitIds.get().currentCommit,
+                        pathPrefixes);
                 return Optional.of(pathsWithDiff);
             }
             //If something goes wrong here it probably means that the git ObjectIds are messed up. We'll just deploy everything
@@ -102,6 +146,342 @@ public class GitRepository {
         }
     }
 
+    /*
+    Walks the diff of two commits handing each changed path to predicate as soon as git finds it, and stops at the
+    first path the predicate accepts. Nothing is collected, so an early match costs almost nothing.
+    Optional.empty() means that changes cannot be determined, like getPathsThatHaveChanged.
+    Deleted paths are not reported, as with getPathsThatHaveChanged.
+     */
+    public Optional<Boolean> anyPathHasChanged(final Optional<CommitIds> commitIds,
+                                               final SortedSet<String> pathPrefixes,
+                                               final Predicate<CharSequence> predicate) {
+        if(!commitIds.isPresent()){
+            return Optional.empty();
+        }
+        if(commitIds.get().isWorkingTree()){
+            try {
+                return Optional.of(anyWorkingTreePathHasChanged(commitIds.get().previousCommit, pathPrefixes, predicate));
+            } catch (IOException e) {
+                logger.warn("Couldn't compare the working tree with HEAD: {}", e.getMessage());
+                return Optional.empty();
+            }
+        }
+
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.TREE_DIFF);
+             ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+
+            final ObjectId prevTreeId = walk.parseCommit(commitIds.get().previousCommit).getTree().getId();
+            final ObjectId currTreeId = walk.parseCommit(commitIds.get().currentCommit).getTree().getId();
+            Metrics.count(Metrics.Counter.OBJECTS_READ, 2);
+
+            //A diff from an earlier build is cheaper than walking the trees again
+            final Optional<List<String>> cachedPaths = diffCache.flatMap(cache -> cache.get(prevTreeId, currTreeId, pathPrefixes));
+            if(cachedPaths.isPresent()){
+                return Optional.of(cachedPaths.get().stream().anyMatch(predicate));
+            }
+
+            treeWalk.addTree(prevTreeId);
+            treeWalk.addTree(currTreeId);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(pathPrefixes.contains("")
+                    ? TreeFilter.ANY_DIFF
+                    : AndTreeFilter.create(toTreeFilter(pathPrefixes), TreeFilter.ANY_DIFF));
+
+            //Paths are handed to the predicate in one reused buffer, straight from git's bytes
+            final PathBuffer path = new PathBuffer();
+            long pathsDiffed = 0;
+            try {
+                while(treeWalk.next()){
+                    pathsDiffed++;
+                    if(treeWalk.getRawMode(1) != 0 && predicate.test(currentPath(treeWalk, 1, path))){
+                        logger.info("Found deploy-worthy change in {}", treeWalk.getPathString());
+                        return Optional.of(true);
+                    }
+                }
+                return Optional.of(false);
+            }
+            finally {
+                Metrics.count(Metrics.Counter.PATHS_DIFFED, pathsDiffed);
+                Metrics.count(Metrics.Counter.OBJECTS_READ, pathsDiffed);
+            }
+        }
+        //If something goes wrong here it probably means that the git ObjectIds are messed up. We'll just deploy everything
+        catch (Exception e){
+            return Optional.empty();
+        }
+    }
+
+    /*
+    Those of directories, relative to the root and without a leading "/", whose tree differs between the two commits.
+    Git stores a tree id for every directory, so this is a lookup per directory however many files changed under it.
+    "" is the whole repository. A directory in neither commit hasn't changed.
+    Optional.empty() means that changes cannot be determined, like getPathsThatHaveChanged.
+     */
+    public Optional<SortedSet<String>> getChangedSubtrees(final Optional<CommitIds> commitIds, final SortedSet<String> directories) {
+        if(!commitIds.isPresent()){
+            return Optional.empty();
+        }
+        if(commitIds.get().isWorkingTree()){
+            //The working tree has no tree ids to compare
+            return Optional.of(directories);
+        }
+
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.TREE_DIFF);
+             ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = new RevWalk(reader)) {
+
+            final ObjectId prevTreeId = walk.parseCommit(commitIds.get().previousCommit).getTree().getId();
+            final ObjectId currTreeId = walk.parseCommit(commitIds.get().currentCommit).getTree().getId();
+            Metrics.count(Metrics.Counter.OBJECTS_READ, 2 + 2L * directories.size());
+
+            final SortedSet<String> changedSubtrees = new TreeSet<>();
+            for(final String directory : directories){
+                if(!Objects.equals(getSubtreeId(reader, prevTreeId, directory), getSubtreeId(reader, currTreeId, directory))){
+                    changedSubtrees.add(directory);
+                }
+            }
+            logger.info("{} of {} subtrees have changed", changedSubtrees.size(), directories.size());
+            return Optional.of(changedSubtrees);
+        }
+        //If something goes wrong here it probably means that the git ObjectIds are messed up. We'll just deploy everything
+        catch (Exception e){
+            return Optional.empty();
+        }
+    }
+
+    private static ObjectId getSubtreeId(final ObjectReader reader, final ObjectId treeId, final String directory) throws IOException {
+        if(directory.isEmpty()){
+            return treeId;
+        }
+        try (TreeWalk treeWalk = TreeWalk.forPath(reader, directory, treeId)) {
+            return treeWalk == null ? null : treeWalk.getObjectId(0);
+        }
+    }
+
+    /*
+    Paths that have changed between each of baseCommits and HEAD, eg the commits modules were last deployed from.
+    All the trees are walked together in one TreeWalk, so subtrees that the bases share are only read once however
+    many bases there are. Bases that cannot be resolved are left out of the result.
+    Deleted paths are not reported, as with anyPathHasChanged.
+     */
+    public Map<String, List<String>> getPathsThatHaveChangedSince(final Set<String> baseCommits, final SortedSet<String> pathPrefixes) throws IOException {
+
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.TREE_DIFF);
+             ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+
+            //Bases with the same tree share one position in the walk
+            final Map<ObjectId, Integer> indexOfTree = new HashMap<>();
+            final Map<String, Integer> indexOfBase = new HashMap<>();
+
+            for(final String baseCommit : baseCommits){
+                final Optional<ObjectId> baseCommitId = resolveQuietly(baseCommit);
+                if(!baseCommitId.isPresent()){
+                    logger.info("Can't find commit {}", baseCommit);
+                    continue;
+                }
+                final ObjectId treeId = walk.parseCommit(baseCommitId.get()).getTree().getId();
+                Integer treeIndex = indexOfTree.get(treeId);
+                if(treeIndex == null){
+                    treeIndex = treeWalk.addTree(treeId);
+                    indexOfTree.put(treeId, treeIndex);
+                }
+                indexOfBase.put(baseCommit, treeIndex);
+            }
+
+            final int headIndex = treeWalk.addTree(walk.parseCommit(repository.resolve(Constants.HEAD)).getTree());
+            final List<List<String>> pathsOfTree = new ArrayList<>();
+            for(int i = 0; i < headIndex; i++){
+                pathsOfTree.add(new ArrayList<>());
+            }
+
+            logger.info("Walking {} base trees for {} base commits", headIndex, baseCommits.size());
+
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(pathPrefixes.contains("")
+                    ? TreeFilter.ANY_DIFF
+                    : AndTreeFilter.create(toTreeFilter(pathPrefixes), TreeFilter.ANY_DIFF));
+
+            final PathBuffer pathBuffer = new PathBuffer();
+            long pathsDiffed = 0;
+            while(treeWalk.next()){
+                pathsDiffed++;
+                if(treeWalk.getRawMode(headIndex) == 0){
+                    continue;
+                }
+                final String path = currentPath(treeWalk, headIndex, pathBuffer).toString();
+                for(int i = 0; i < headIndex; i++){
+                    if(treeWalk.getRawMode(i) != treeWalk.getRawMode(headIndex) || !treeWalk.idEqual(i, headIndex)){
+                        pathsOfTree.get(i).add(path);
+                    }
+                }
+            }
+
+            Metrics.count(Metrics.Counter.PATHS_DIFFED, pathsDiffed);
+            Metrics.count(Metrics.Counter.OBJECTS_READ, pathsDiffed + indexOfBase.size() + 1);
+
+            final Map<String, List<String>> result = new HashMap<>();
+            indexOfBase.forEach((baseCommit, treeIndex) -> result.put(baseCommit, Collections.unmodifiableList(pathsOfTree.get(treeIndex))));
+            return result;
+        }
+    }
+
+    /*
+    Hands consumer every commit reachable from untilCommit but not from sinceCommit, newest first and at most
+    maxCommits of them, with the paths it changed compared with its first parent. A root commit is compared with an
+    empty tree. The whole range is walked with one RevWalk and object reader, so each tree is parsed once even though
+    it is diffed as both a commit and a parent. Deleted paths are not reported, as with anyPathHasChanged.
+     */
+    public void walkChangesOfCommits(final Optional<String> sinceCommit,
+                                     final String untilCommit,
+                                     final int maxCommits,
+                                     final SortedSet<String> pathPrefixes,
+                                     final BiConsumer<RevCommit, List<String>> consumer) throws IOException {
+
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.TREE_DIFF);
+             ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+
+            walk.markStart(walk.parseCommit(resolveOrFail(untilCommit)));
+            if(sinceCommit.isPresent()){
+                walk.markUninteresting(walk.parseCommit(resolveOrFail(sinceCommit.get())));
+            }
+
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(pathPrefixes.contains("")
+                    ? TreeFilter.ANY_DIFF
+                    : AndTreeFilter.create(toTreeFilter(pathPrefixes), TreeFilter.ANY_DIFF));
+
+            final PathBuffer pathBuffer = new PathBuffer();
+            int commits = 0;
+            for(final RevCommit commit : walk){
+                if(commits++ >= maxCommits){
+                    break;
+                }
+
+                treeWalk.reset();
+                if(commit.getParentCount() == 0){
+                    treeWalk.addTree(new EmptyTreeIterator());
+                }
+                else {
+                    final RevCommit parent = commit.getParent(0);
+                    walk.parseHeaders(parent);
+                    treeWalk.addTree(parent.getTree());
+                }
+                treeWalk.addTree(commit.getTree());
+
+                final List<String> pathsWithDiff = new ArrayList<>();
+                long pathsDiffed = 0;
+                while(treeWalk.next()){
+                    pathsDiffed++;
+                    if(treeWalk.getRawMode(1) != 0){
+                        pathsWithDiff.add(currentPath(treeWalk, 1, pathBuffer).toString());
+                    }
+                }
+                Metrics.count(Metrics.Counter.PATHS_DIFFED, pathsDiffed);
+                Metrics.count(Metrics.Counter.OBJECTS_READ, pathsDiffed + 1);
+                consumer.accept(commit, pathsWithDiff);
+            }
+            logger.info("Walked {} commits", Math.min(commits, maxCommits));
+        }
+    }
+
+    /*
+    The id of the commit a revision such as a branch name points at, eg to use as a task input. "none" for no revision
+     */
+    public String resolveCommitName(final Optional<String> revision) throws IOException {
+        return revision.isPresent() ? resolveOrFail(revision.get()).name() : "none";
+    }
+
+    private ObjectId resolveOrFail(final String revision) throws IOException {
+        final Optional<ObjectId> objectId = resolveQuietly(revision);
+        if(!objectId.isPresent()){
+            throw new InvalidUserDataException("Can't find commit " + revision);
+        }
+        return objectId.get();
+    }
+
+    private Optional<ObjectId> resolveQuietly(final String revision) {
+        try {
+            return Optional.ofNullable(repository.resolve(revision));
+        }
+        catch (Exception e){
+            return Optional.empty();
+        }
+    }
+
+    /*
+    The id of the tree of the commit a revision points at. Commits with the same tree always have the same diff
+     */
+    public ObjectId resolveTreeId(final String revision) throws IOException {
+        try (RevWalk walk = new RevWalk(repository)) {
+            return walk.parseCommit(resolveOrFail(revision)).getTree().getId();
+        }
+        catch (IncorrectObjectTypeException | MissingObjectException e){
+            throw new InvalidUserDataException("Can't find commit " + revision, e);
+        }
+    }
+
+    public ObjectId getHeadCommitId() throws IOException {
+        return repository.resolve(Constants.HEAD);
+    }
+
+    /*
+    The pair of commits to diff for a strategy. Optional.empty() if they cannot be determined
+     */
+    public Optional<CommitIds> getCommitIds(final DiffStrategy diffStrategy, final Optional<String> previousCommit) throws IOException {
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.COMMIT_RESOLUTION)) {
+            return resolveCommitIds(diffStrategy, previousCommit);
+        }
+    }
+
+    private Optional<CommitIds> resolveCommitIds(final DiffStrategy diffStrategy, final Optional<String> previousCommit) throws IOException {
+
+        logger.info("Currently on branch {}", repository.getBranch());
+
+        //TODO Consider if we want fallbacks here or not -ffarrell
+        switch (diffStrategy){
+            case JENKINS_LAST_COMMIT:
+                return getCommitIdsFromJenkinsEnvVar();
+            case PREVIOUS_TAG:
+                return getCommitIdsFromPreviousTag();
+            case PREVIOUS_COMMIT:
+                return getCommitIdsFromPreviousCommit();
+            case SPECIFIC_COMMIT:
+                if(previousCommit.isPresent()){
+                    return Optional.of(new CommitIds(repository.resolve(previousCommit.get()) , repository.resolve(Constants.HEAD)));
+                }
+                else{
+                    throw new InvalidUserDataException("previousCommit hash must be specified if the SPECIFIC_COMMIT diff strategy is used");
+                }
+            case WORKING_TREE:
+                if(repository.isBare()){
+                    throw new InvalidUserDataException("The WORKING_TREE diff strategy can't be used in a bare repository");
+                }
+                //Nothing to compare with before the first commit
+                return Optional.ofNullable(repository.resolve(Constants.HEAD)).map(CommitIds::workingTree);
+            case LEDGER:
+                //previousCommit is the module's entry in the ledger, if it has ever been deployed
+                if(previousCommit.isPresent()){
+                    return Optional.of(new CommitIds(repository.resolve(previousCommit.get()), repository.resolve(Constants.HEAD)));
+                }
+                else{
+                    return Optional.empty();
+                }
+            default:
+                throw new RuntimeException("This is impossible, but it makes the compiler happy");
+        }
+    }
+
+    @Override
+    public void close() {
+        repository.close();
+    }
+
     //its just a normal commit. Compare HEAD with HEAD ~1
     private Optional<CommitIds> getCommitIdsFromPreviousCommit() throws IOException {
 
@@ -121,27 +501,47 @@ public class GitRepository {
         }
     }
 
+    /*
+    Like the PREVIOUS_TAG strategy, but only with the version tags that start with tagPrefix, eg "payments-" for a
+    module released on its own as payments-2.3.1. The prefix is empty for plain version tags
+     */
+    public Optional<CommitIds> getCommitIdsFromPreviousTag(final String tagPrefix) throws IOException {
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.COMMIT_RESOLUTION)) {
+            return resolveCommitIdsFromPreviousTag(tagPrefix);
+        }
+    }
+
+    /*
+    The same pair with annotated tags replaced by the commits they point at, so pairs of tags on the same commits are equal
+     */
+    public CommitIds peel(final CommitIds commitIds) throws IOException {
+        try (RevWalk walk = new RevWalk(repository)) {
+            return new CommitIds(walk.parseCommit(commitIds.previousCommit).copy(), walk.parseCommit(commitIds.currentCommit).copy());
+        }
+    }
+
     private Optional<CommitIds> getCommitIdsFromPreviousTag() throws IOException {
+        return resolveCommitIdsFromPreviousTag("");
+    }
 
-        final List<Version> versions = getAllVersionsInRepository();
-        final Map<String, Ref> allTagsOnRepository = repository.getTags();
+    private Optional<CommitIds> resolveCommitIdsFromPreviousTag(final String tagPrefix) throws IOException {
 
-        if(getHeadVersion().isPresent()){
-            System.out.println("Using head version");
+        final VersionTagIndex versionTagIndex = getVersionTagIndex(tagPrefix);
+        final Optional<Version> headVersion = getHeadVersion(tagPrefix);
 
-            final Version headVer = getHeadVersion().get();
+        if(headVersion.isPresent()){
+            logger.info("Using head version");
 
-            logger.debug("Current version: {}", headVer);
+            final Version headVer = headVersion.get();
 
+            logger.debug("Current version: {}", headVer);
 
-            final int indexOfHead = versions.indexOf(headVer);
+            final int indexOfHead = versionTagIndex.indexOf(headVer);
 
             if (indexOfHead > 0) {
-                final Version currVersion = versions.get(indexOfHead);
-                final Version prevVersion = versions.get(indexOfHead - 1);
-                logger.info("Prev version: {}", prevVersion);
+                logger.info("Prev version: {}", versionTagIndex.getVersion(indexOfHead - 1));
 
-                return Optional.of(new CommitIds(allTagsOnRepository.get(prevVersion.toString()).getObjectId(), allTagsOnRepository.get(currVersion.toString()).getObjectId()));
+                return Optional.of(new CommitIds(versionTagIndex.getTagId(indexOfHead - 1), versionTagIndex.getTagId(indexOfHead)));
             }
             //First ever tagged commit, must deploy
             else{
@@ -150,11 +550,11 @@ public class GitRepository {
         }
         else {
             //HEAD is not a tagged commit
-            if(versions.size()>0){
-                final Version prevVersion = versions.get(versions.size() - 1);
-                logger.info("Prev version: {}", prevVersion);
+            if(!versionTagIndex.isEmpty()){
+                final int indexOfLatest = versionTagIndex.size() - 1;
+                logger.info("Prev version: {}", versionTagIndex.getVersion(indexOfLatest));
 
-                return Optional.of(new CommitIds(allTagsOnRepository.get(prevVersion.toString()).getObjectId(), repository.resolve(Constants.HEAD)));
+                return Optional.of(new CommitIds(versionTagIndex.getTagId(indexOfLatest), repository.resolve(Constants.HEAD)));
             }
             else{
                 return Optional.empty();
@@ -187,52 +587,46 @@ public class GitRepository {
     }
 
     protected List<Version> getAllVersionsInRepository() {
-        return repository
-                .getTags()
-                .keySet()
-                .stream()
-                .map(key -> {
-                    try {
-                        return Optional.of(Version.valueOf(key));
-                    } catch (Exception e) {
-                        return Optional.<Version>empty();
-                    }
-                })
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .sorted()
-                .collect(Collectors.toList());
+        return getVersionTagIndex().getVersions();
     }
 
-    //Lazy evaluation
-    protected synchronized Optional<Version> getHeadVersion() throws IOException {
+    //Lazy evaluation, tags are only read and parsed once, and not again in later builds until a ref changes
+    protected VersionTagIndex getVersionTagIndex() {
+        return getVersionTagIndex("");
+    }
 
-        if(headVersion != null){
-            return headVersion;
-        }
-        else {
+    protected synchronized VersionTagIndex getVersionTagIndex(final String tagPrefix) {
+        return versionTagIndexes.computeIfAbsent(tagPrefix, prefix -> WarmRepositoryCache.getVersionTagIndex(repository, prefix,
+                () -> VersionTagIndex.build(repository.getTags(), prefix, this::getPeeledCommitId)));
+    }
 
-            final List<String> tagsOnHead = getTagsOnHead();
+    //The commit an annotated tag points to, or the commit itself for a lightweight tag
+    private ObjectId getPeeledCommitId(final Ref ref) {
+        ObjectId peeledObjectId = ref.getPeeledObjectId();
+        if(peeledObjectId == null && !ref.isPeeled()){
+            final Ref peeledRef = repository.peel(ref);
+            peeledObjectId = peeledRef == null ? null : peeledRef.getPeeledObjectId();
+        }
+        return peeledObjectId != null ? peeledObjectId : ref.getObjectId();
+    }
 
-            logger.debug("Tags on head {}", tagsOnHead.size());
+    private Optional<Version> getHeadVersion(final String tagPrefix) throws IOException {
+        if(tagPrefix.isEmpty()){
+            return getHeadVersion();
+        }
+        final ObjectId head = repository.resolve(Constants.HEAD);
+        return head == null ? Optional.empty() : getVersionTagIndex(tagPrefix).getVersionOnCommit(head);
+    }
 
-            tagsOnHead.forEach(tag -> logger.debug("Tag on head {}", tag));
+    //Lazy evaluation
+    protected synchronized Optional<Version> getHeadVersion() throws IOException {
 
-            this.headVersion =
-                    tagsOnHead.stream().filter(tag -> {
-                        try {
-                            logger.debug("Trying to turn tag into version for {}", tag);
-                            Version.valueOf(tag);
-                            return true;
-                        } catch (Exception e) {
-                            logger.error("Failed to turn tag into version for {}", tag ,e);
-                            return false;
-                        }
-                    })
-                    .map(Version::valueOf)
-                    .findFirst();
-            return headVersion;
+        if(headVersion == null){
+            final ObjectId head = repository.resolve(Constants.HEAD);
+            this.headVersion = head == null ? Optional.empty() : getVersionTagIndex().getVersionOnCommit(head);
+            logger.debug("Head version {}", headVersion);
         }
+        return headVersion;
     }
 
     protected List<String> getTagsOnHead() throws IOException {
@@ -241,41 +635,141 @@ public class GitRepository {
 
         logger.info("Head is {}", head.toString());
 
-        return repository.getTags().entrySet().stream()
-                .filter(entry -> {
-                    final Boolean value = entry.getValue().getPeeledObjectId() != null &&
-                            entry.getValue().getPeeledObjectId().compareTo(head) == 0;
-                    logger.debug("Comparing {} to {} : result {}", entry.getValue().getPeeledObjectId(), head, value);
-                    return value;
+        return getVersionTagIndex().getTagNamesOnCommit(head);
+    }
 
-                })
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+    /*
+    Diffs the trees of two commits, reusing a diff of the same trees from an earlier build if there is one
+     */
+    protected List<String> getPathsWithDiff(final ObjectId previousCommit, final ObjectId currentCommit, final SortedSet<String> pathPrefixes) throws GitAPIException, IOException {
+
+        final ObjectId prevTreeId;
+        final ObjectId currTreeId;
+        try (RevWalk walk = new RevWalk(repository)) {
+            prevTreeId = walk.parseCommit(previousCommit).getTree().getId();
+            currTreeId = walk.parseCommit(currentCommit).getTree().getId();
+            Metrics.count(Metrics.Counter.OBJECTS_READ, 2);
+        }
+        return getPathsWithDiffOfTrees(prevTreeId, currTreeId, pathPrefixes);
     }
 
-    protected static List<String> getPathsWithDiff(Repository repository, ObjectId previousCommit, ObjectId currentCommit) throws GitAPIException, IOException {
-        Git git = Git.wrap(repository);
+    /*
+    Diffs two trees, eg ones from resolveTreeId, reusing a diff of the same trees from an earlier build if there is one
+     */
+    public List<String> getPathsWithDiffOfTrees(final ObjectId prevTreeId, final ObjectId currTreeId, final SortedSet<String> pathPrefixes) throws GitAPIException, IOException {
 
-        try (ObjectReader reader = repository.newObjectReader()) {
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.TREE_DIFF)) {
 
-            final RevWalk walk = new RevWalk(repository);
+            if(!diffCache.isPresent()){
+                return getPathsWithDiffOfTrees(repository, prevTreeId, currTreeId, toTreeFilter(pathPrefixes));
+            }
 
-            final RevCommit prevRevCommit = walk.parseCommit(previousCommit);
-            final ObjectId prevTreeId = prevRevCommit.getTree().getId();
+            final Optional<List<String>> cachedPaths = diffCache.get().get(prevTreeId, currTreeId, pathPrefixes);
+            if(cachedPaths.isPresent()){
+                logger.info("Using cached diff of trees {} and {}", prevTreeId.name(), currTreeId.name());
+                return cachedPaths.get();
+            }
 
-            final CanonicalTreeParser previousVersionTreeIter = new CanonicalTreeParser(null, reader, prevTreeId);
+            final List<String> pathsWithDiff = getPathsWithDiffOfTrees(repository, prevTreeId, currTreeId, toTreeFilter(pathPrefixes));
+            diffCache.get().put(prevTreeId, currTreeId, pathPrefixes, pathsWithDiff);
+            return pathsWithDiff;
+        }
+    }
+
+    protected static List<String> getPathsWithDiff(Repository repository, ObjectId previousCommit, ObjectId currentCommit) throws GitAPIException, IOException {
 
+        try (RevWalk walk = new RevWalk(repository)) {
+
+            final RevCommit prevRevCommit = walk.parseCommit(previousCommit);
             final RevCommit currRevCommit = walk.parseCommit(currentCommit);
-            final ObjectId currTreeId = currRevCommit.getTree().getId();
 
+            logger.info("Trying git diff {} with {}", prevRevCommit.toString(), currRevCommit.toString()) ;
+            return getPathsWithDiffOfTrees(repository, prevRevCommit.getTree().getId(), currRevCommit.getTree().getId(), TreeFilter.ALL);
+
+        } catch (IncorrectObjectTypeException e) {
+            //TODO What does this actually mean? -ffarrell 2017-09-11
+            throw e;
+        }
+    }
+
+    /*
+    The path of the current entry, from the raw bytes of a tree that has it rather than as a new String
+     */
+    private static PathBuffer currentPath(final TreeWalk treeWalk, final int tree, final PathBuffer pathBuffer) {
+        final AbstractTreeIterator iterator = treeWalk.getTree(tree, AbstractTreeIterator.class);
+        return pathBuffer.setRaw(iterator.getEntryPathBuffer(), iterator.getEntryPathLength());
+    }
+
+    /*
+    Walks HEAD, the index and the working tree together, like git status, handing every path that is new or modified
+    in the index or the working tree to predicate, and stops at the first one it accepts. A file whose size and
+    modification time are the same as in the index isn't read, only files whose stat data changed are hashed.
+    Untracked files are changes, ignored and deleted ones are not
+     */
+    private boolean anyWorkingTreePathHasChanged(final ObjectId headCommit,
+                                                 final SortedSet<String> pathPrefixes,
+                                                 final Predicate<CharSequence> predicate) throws IOException {
+
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.TREE_DIFF);
+             RevWalk walk = new RevWalk(repository);
+             TreeWalk treeWalk = new TreeWalk(repository)) {
+
+            treeWalk.addTree(walk.parseCommit(headCommit).getTree());
+            final int indexTree = treeWalk.addTree(new DirCacheIterator(repository.readDirCache()));
+            final FileTreeIterator workingTreeIterator = new FileTreeIterator(repository);
+            final int workingTree = treeWalk.addTree(workingTreeIterator);
+            //Lets the working tree use the index's stat data and ids rather than hashing every file
+            workingTreeIterator.setDirCacheIterator(treeWalk, indexTree);
+
+            treeWalk.setRecursive(true);
+            final TreeFilter changedFilter = new IndexDiffFilter(indexTree, workingTree);
+            treeWalk.setFilter(pathPrefixes.contains("")
+                    ? changedFilter
+                    : AndTreeFilter.create(toTreeFilter(pathPrefixes), changedFilter));
+
+            final PathBuffer path = new PathBuffer();
+            long pathsDiffed = 0;
+            try {
+                while(treeWalk.next()){
+                    pathsDiffed++;
+                    if(treeWalk.getRawMode(workingTree) != 0 && predicate.test(currentPath(treeWalk, workingTree, path))){
+                        logger.info("Found deploy-worthy change in {}", treeWalk.getPathString());
+                        return true;
+                    }
+                }
+                return false;
+            }
+            finally {
+                Metrics.count(Metrics.Counter.PATHS_DIFFED, pathsDiffed);
+                Metrics.count(Metrics.Counter.OBJECTS_READ, pathsDiffed + 1);
+            }
+        }
+    }
+
+    static TreeFilter toTreeFilter(final SortedSet<String> pathPrefixes) {
+        if(pathPrefixes.contains("")){
+            return TreeFilter.ALL;
+        }
+        logger.info("Only diffing under {}", pathPrefixes);
+        return PathFilterGroup.createFromStrings(pathPrefixes);
+    }
+
+    private static List<String> getPathsWithDiffOfTrees(Repository repository, ObjectId prevTreeId, ObjectId currTreeId, TreeFilter treeFilter) throws GitAPIException, IOException {
+        Git git = Git.wrap(repository);
+
+        try (ObjectReader reader = repository.newObjectReader()) {
+
+            final CanonicalTreeParser previousVersionTreeIter = new CanonicalTreeParser(null, reader, prevTreeId);
             final CanonicalTreeParser currVersionTreeIter = new CanonicalTreeParser(null, reader, currTreeId);
 
-            logger.info("Trying git diff {} with {}", prevRevCommit.toString(), currRevCommit.toString()) ;
             final List<DiffEntry> diff = git.diff()
                     .setNewTree(currVersionTreeIter)
                     .setOldTree(previousVersionTreeIter)
+                    .setPathFilter(treeFilter)
                     .setShowNameAndStatusOnly(true)
                     .call();
+            Metrics.count(Metrics.Counter.PATHS_DIFFED, diff.size());
+            Metrics.count(Metrics.Counter.OBJECTS_READ, diff.size());
 
             return diff.stream()
                     /*
@@ -283,23 +777,57 @@ public class GitRepository {
                     .filter(diffe -> diffe.getChangeType().equals(DiffEntry.ChangeType.MODIFY))
                      */
                     .map(x -> "/" + x.getNewPath())
-                    .peek(diffe -> logger.debug("Diff {}", diffe))
                     .collect(Collectors.toList());
-
-        } catch (IncorrectObjectTypeException e) {
-            //TODO What does this actually mean? -ffarrell 2017-09-11
-            throw e;
         }
     }
 
-    private class CommitIds {
+    /*
+    A pair of commits to diff. Equal pairs always produce the same diff, except for the working tree, which is
+    represented by the zero id as the current commit
+     */
+    public static class CommitIds {
         final ObjectId previousCommit;
         final ObjectId currentCommit;
 
-        private CommitIds(final ObjectId previousCommit, final ObjectId currentCommit) {
+        CommitIds(final ObjectId previousCommit, final ObjectId currentCommit) {
             this.previousCommit = previousCommit;
             this.currentCommit = currentCommit;
         }
+
+        static CommitIds workingTree(final ObjectId headCommit) {
+            return new CommitIds(headCommit, ObjectId.zeroId());
+        }
+
+        public boolean isWorkingTree() {
+            return ObjectId.zeroId().equals(currentCommit);
+        }
+
+        public ObjectId getPreviousCommit() {
+            return previousCommit;
+        }
+
+        public ObjectId getCurrentCommit() {
+            return currentCommit;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final CommitIds commitIds = (CommitIds) o;
+            return Objects.equals(previousCommit, commitIds.previousCommit) &&
+                    Objects.equals(currentCommit, commitIds.currentCommit);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(previousCommit, currentCommit);
+        }
+
+        @Override
+        public String toString() {
+            return (previousCommit == null ? null : previousCommit.name()) + ".." + (isWorkingTree() ? WORKING_TREE_NAME : currentCommit == null ? null : currentCommit.name());
+        }
     }
 
 }
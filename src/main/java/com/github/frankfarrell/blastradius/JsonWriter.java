@@ -0,0 +1,148 @@
+package com.github.frankfarrell.blastradius;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Just enough of a streaming JSON writer for the reports the tasks write, so the plugin doesn't need a JSON library.
+ *
+ * Commas and indentation are added automatically. Nesting isn't checked, so callers have to close what they open.
+ */
+public class JsonWriter implements AutoCloseable {
+
+    private final Writer writer;
+
+    private int depth = 0;
+    //Whether the object or array being written already has a member, so the next one needs a comma
+    private boolean hasMember = false;
+    //Whether a name was just written, so its value follows on the same line
+    private boolean afterName = false;
+
+    public JsonWriter(final Writer writer) {
+        this.writer = writer;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return begin('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return end('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return begin('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return end(']');
+    }
+
+    public JsonWriter name(final String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        writer.write(": ");
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(final String value) throws IOException {
+        beforeValue();
+        if(value == null){
+            writer.write("null");
+        }
+        else {
+            writeString(value);
+        }
+        return afterValue();
+    }
+
+    public JsonWriter value(final long value) throws IOException {
+        beforeValue();
+        writer.write(Long.toString(value));
+        return afterValue();
+    }
+
+    public JsonWriter value(final double value) throws IOException {
+        beforeValue();
+        writer.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+        return afterValue();
+    }
+
+    public JsonWriter value(final boolean value) throws IOException {
+        beforeValue();
+        writer.write(Boolean.toString(value));
+        return afterValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.write('\n');
+        writer.close();
+    }
+
+    private JsonWriter begin(final char bracket) throws IOException {
+        beforeValue();
+        writer.write(bracket);
+        depth++;
+        hasMember = false;
+        afterName = false;
+        return this;
+    }
+
+    private JsonWriter end(final char bracket) throws IOException {
+        depth--;
+        if(hasMember){
+            newLine();
+        }
+        writer.write(bracket);
+        return afterValue();
+    }
+
+    private void beforeValue() throws IOException {
+        if(afterName){
+            return;
+        }
+        if(hasMember){
+            writer.write(',');
+        }
+        if(depth > 0){
+            newLine();
+        }
+    }
+
+    private JsonWriter afterValue() {
+        afterName = false;
+        hasMember = true;
+        return this;
+    }
+
+    private void newLine() throws IOException {
+        writer.write('\n');
+        for(int i = 0; i < depth; i++){
+            writer.write("  ");
+        }
+    }
+
+    private void writeString(final String value) throws IOException {
+        writer.write('"');
+        for(int i = 0; i < value.length(); i++){
+            final char c = value.charAt(i);
+            switch (c){
+                case '"': writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\t': writer.write("\\t"); break;
+                default:
+                    if(c < 0x20){
+                        writer.write(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
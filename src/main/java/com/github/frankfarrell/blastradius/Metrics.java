@@ -0,0 +1,160 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent in each phase of working out what changed, and counters of the work done, for the build so far.
+ *
+ * Recording is a couple of LongAdder updates, so it's always on, and hot loops add their counts once at the end
+ * rather than per path. The tasks write the metrics as JSON next to their output so they can be trended across builds.
+ * The metrics are reset when the build finishes.
+ */
+public final class Metrics {
+
+    private static final Logger logger = Logging.getLogger(Metrics.class);
+
+    public static final String FILE_SUFFIX = ".metrics.json";
+
+    public enum Phase {
+        REPOSITORY_DISCOVERY("repositoryDiscovery"),
+        COMMIT_RESOLUTION("commitResolution"),
+        TREE_DIFF("treeDiff"),
+        PATTERN_COMPILATION("patternCompilation"),
+        DEPENDENCY_RESOLUTION("dependencyResolution"),
+        MATCHING("matching");
+
+        final String jsonName;
+
+        Phase(final String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    public enum Counter {
+        PATHS_DIFFED("pathsDiffed"),
+        PATTERNS_COMPILED("patternsCompiled"),
+        REGEX_EVALUATIONS("regexEvaluations"),
+        MODULES_VISITED("modulesVisited"),
+        //Commits parsed and tree entries walked
+        OBJECTS_READ("objectsRead"),
+        //Repositories and tag indexes reused from an earlier build in the same daemon
+        WARM_CACHE_HITS("warmCacheHits");
+
+        final String jsonName;
+
+        Counter(final String jsonName) {
+            this.jsonName = jsonName;
+        }
+    }
+
+    private static final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+    private static final Map<Phase, LongAdder> phaseCounts = new EnumMap<>(Phase.class);
+    private static final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+
+    static {
+        for(final Phase phase : Phase.values()){
+            phaseNanos.put(phase, new LongAdder());
+            phaseCounts.put(phase, new LongAdder());
+        }
+        for(final Counter counter : Counter.values()){
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /*
+    Use with try-with-resources around the work of a phase
+     */
+    public static Timer time(final Phase phase) {
+        return new Timer(phase, System.nanoTime());
+    }
+
+    public static void count(final Counter counter, final long amount) {
+        if(amount != 0){
+            counters.get(counter).add(amount);
+        }
+    }
+
+    public static long getCount(final Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    public static long getNanos(final Phase phase) {
+        return phaseNanos.get(phase).sum();
+    }
+
+    public static void reset() {
+        phaseNanos.values().forEach(LongAdder::reset);
+        phaseCounts.values().forEach(LongAdder::reset);
+        counters.values().forEach(LongAdder::reset);
+    }
+
+    /*
+    The metrics are only for information, so failing to write them doesn't fail the task
+     */
+    public static void writeReport(final File file) {
+        try {
+            writeJson(file);
+        }
+        catch (IOException e){
+            logger.warn("Couldn't write metrics to {}: {}", file, e.getMessage());
+        }
+    }
+
+    /*
+    {"phases": {"treeDiff": {"count": 1, "millis": 12.5}, ...}, "counters": {"pathsDiffed": 120, ...}}
+     */
+    public static void writeJson(final File file) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+
+        try (JsonWriter json = new JsonWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            json.beginObject();
+
+            json.name("phases").beginObject();
+            for(final Phase phase : Phase.values()){
+                json.name(phase.jsonName).beginObject()
+                        .name("count").value(phaseCounts.get(phase).sum())
+                        .name("millis").value(phaseNanos.get(phase).sum() / 1_000_000.0)
+                        .endObject();
+            }
+            json.endObject();
+
+            json.name("counters").beginObject();
+            for(final Counter counter : Counter.values()){
+                json.name(counter.jsonName).value(counters.get(counter).sum());
+            }
+            json.endObject();
+
+            json.endObject();
+        }
+    }
+
+    public static final class Timer implements AutoCloseable {
+
+        private final Phase phase;
+        private final long start;
+
+        private Timer(final Phase phase, final long start) {
+            this.phase = phase;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            phaseNanos.get(phase).add(System.nanoTime() - start);
+            phaseCounts.get(phase).increment();
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+
+/**
+ * Works out which modules of a {@link ModuleGraph} have changed for a list of paths with a diff.
+ *
+ * A module has changed if a path matches one of its file patterns, either relative to the module itself or relative
+ * to any module it depends on. Each path is routed through a {@link ModulePathTrie} to the modules whose directory it
+ * is in, and only tested against their patterns. Modules that share a set of file patterns are evaluated together: each
+ * dependency is matched once per pattern set and the result is pushed to dependents with
+ * {@link ModuleGraph#propagateToDependents(BitSet)}.
+ *
+ * Large lists of paths are split between the cores with a fork join pool. Each part records its matches in its own
+ * BitSets, which are merged before propagating, so the result doesn't depend on how the paths were split.
+ */
+public class ModuleChangeEvaluator {
+
+    private static final Logger logger = Logging.getLogger(ModuleChangeEvaluator.class);
+
+    //Below this many paths matching is not worth splitting between threads
+    static final int PATHS_PER_TASK = 512;
+
+    //Shared by every evaluator in the daemon, with one thread per core
+    private static ForkJoinPool pool;
+
+    private final ModuleGraph moduleGraph;
+    private final Set<String> defaultFilePatterns;
+    private final Map<String, Set<String>> moduleFilePatterns;
+
+    public ModuleChangeEvaluator(final ModuleGraph moduleGraph,
+                                 final Set<String> defaultFilePatterns,
+                                 final Map<String, Set<String>> moduleFilePatterns) {
+        this.moduleGraph = moduleGraph;
+        this.defaultFilePatterns = defaultFilePatterns;
+        this.moduleFilePatterns = moduleFilePatterns;
+    }
+
+    public ModuleChangeEvaluator(final ModuleGraph moduleGraph, final Set<String> filePatterns) {
+        this(moduleGraph, filePatterns, Collections.emptyMap());
+    }
+
+    public Set<String> getFilePatterns(final int module) {
+        return moduleFilePatterns.getOrDefault(moduleGraph.getModulePath(module), defaultFilePatterns);
+    }
+
+    /*
+    Returns every module under, and including, startModule mapped to whether it has changed.
+    A module whose parent has changed is also considered changed.
+     */
+    public Map<String, Boolean> getChangedModules(final int startModule, final List<String> pathsWithDiff) {
+
+        final List<Integer> modules = moduleGraph.getModuleAndDescendants(startModule);
+        return toMap(modules, withChangedParents(startModule, modules, getModulesWithChanges(modules, pathsWithDiff)));
+    }
+
+    /*
+    Like getChangedModules, but as the indexes of the modules that have changed, and without logging every module.
+    For evaluating many diffs
+     */
+    public BitSet getChangedModuleIndexes(final int startModule, final List<String> pathsWithDiff) {
+
+        final List<Integer> modules = moduleGraph.getModuleAndDescendants(startModule);
+        return withChangedParents(startModule, modules, getModulesWithChanges(modules, pathsWithDiff));
+    }
+
+    /*
+    Like getChangedModules, but each module is compared with its own diff, eg since it was last deployed.
+    Modules without a diff are considered changed. Modules given the same list are evaluated together
+     */
+    public Map<String, Boolean> getChangedModules(final int startModule, final Function<String, Optional<List<String>>> pathsWithDiffOfModule) {
+
+        final List<Integer> modules = moduleGraph.getModuleAndDescendants(startModule);
+        final BitSet changed = new BitSet(moduleGraph.size());
+        final Map<List<String>, List<Integer>> modulesByDiff = new IdentityHashMap<>();
+
+        for(final int module : modules){
+            final Optional<List<String>> pathsWithDiff = pathsWithDiffOfModule.apply(moduleGraph.getModulePath(module));
+            if(pathsWithDiff.isPresent()){
+                modulesByDiff.computeIfAbsent(pathsWithDiff.get(), paths -> new ArrayList<>()).add(module);
+            }
+            else {
+                changed.set(module);
+            }
+        }
+        modulesByDiff.forEach((pathsWithDiff, modulesWithDiff) -> changed.or(getModulesWithChanges(modulesWithDiff, pathsWithDiff)));
+
+        return toMap(modules, withChangedParents(startModule, modules, changed));
+    }
+
+    private BitSet withChangedParents(final int startModule, final List<Integer> modules, final BitSet changed) {
+        for(final int module : modules){
+            //Parents are always visited before their children
+            if(module != startModule && changed.get(moduleGraph.getParent(module))){
+                changed.set(module);
+            }
+        }
+        return changed;
+    }
+
+    //Why each module has or hasn't changed is only recorded when asked for, see explain
+    private Map<String, Boolean> toMap(final List<Integer> modules, final BitSet changed) {
+        final Map<String, Boolean> result = new LinkedHashMap<>();
+        for(final int module : modules){
+            result.put(moduleGraph.getModulePath(module), changed.get(module));
+        }
+        logger.info("{} of {} modules have changed", changed.cardinality(), modules.size());
+        return result;
+    }
+
+    /*
+    Why each module of the result of getChangedModules has or hasn't changed: the first path that changed it and the
+    pattern the path matched, or the parent it changed with. Only the modules that have changed are looked at again,
+    and only until something that changed them is found
+     */
+    public DecisionTrace explain(final Map<String, Boolean> changedModules, final List<String> pathsWithDiff) {
+        return explain(changedModules, modulePath -> Optional.of(pathsWithDiff));
+    }
+
+    /*
+    For the result of getChangedModules with a diff per module. Modules without a diff changed because of that
+     */
+    public DecisionTrace explain(final Map<String, Boolean> changedModules, final Function<String, Optional<List<String>>> pathsWithDiffOfModule) {
+
+        final DecisionTrace trace = new DecisionTrace();
+        final Map<List<String>, BitSet> modulesByDiff = new IdentityHashMap<>();
+
+        for(final Map.Entry<String, Boolean> entry : changedModules.entrySet()){
+            if(!entry.getValue()){
+                trace.unchanged(entry.getKey());
+                continue;
+            }
+            final Optional<List<String>> pathsWithDiff = pathsWithDiffOfModule.apply(entry.getKey());
+            if(pathsWithDiff.isPresent()){
+                modulesByDiff.computeIfAbsent(pathsWithDiff.get(), paths -> new BitSet(moduleGraph.size()))
+                        .set(moduleGraph.indexOf(entry.getKey()));
+            }
+            else {
+                trace.changedBy(entry.getKey(), DecisionTrace.Source.NO_DIFF, null, null, null);
+            }
+        }
+        modulesByDiff.forEach((pathsWithDiff, modules) -> new EvidenceSearch(modules, trace).search(pathsWithDiff));
+
+        //What's left changed with its parent
+        for(final Map.Entry<String, Boolean> entry : changedModules.entrySet()){
+            if(entry.getValue() && !trace.hasDecision(entry.getKey())){
+                final int parent = moduleGraph.getParent(moduleGraph.indexOf(entry.getKey()));
+                trace.changedBy(entry.getKey(), DecisionTrace.Source.PARENT, null, null,
+                        parent < 0 ? null : moduleGraph.getModulePath(parent));
+            }
+        }
+        return trace;
+    }
+
+    /*
+    Whether the module has changed itself or through one of its dependencies. Parent modules are not considered.
+     */
+    public boolean hasChanged(final int module, final List<String> pathsWithDiff) {
+        return getModulesWithChanges(Collections.singletonList(module), pathsWithDiff).get(module);
+    }
+
+    /*
+    Tests a single path at a time, for callers that stop at the first change.
+    Gives the same answer as hasChanged would for a list with just that path.
+    The predicate reuses its buffer and matcher for every path, so it must only be used by one thread at a time
+     */
+    public Predicate<CharSequence> changesModule(final int module) {
+        return new SinglePathMatch(module);
+    }
+
+    /*
+    Directories, relative to the root of the repository and without a leading "/", that hold every path that could
+    change startModule or a module under it. Contains only "" if a change anywhere in the repository could
+     */
+    public SortedSet<String> getPathPrefixes(final int startModule) {
+        return getPathPrefixes(moduleGraph.getModuleAndDescendants(startModule));
+    }
+
+    public SortedSet<String> getPathPrefixes(final List<Integer> modules) {
+        final Set<String> prefixes = new HashSet<>();
+
+        for(final int module : modules){
+            final Set<String> directoryPrefixes = FilePatternMatcher.forPatterns(getFilePatterns(module)).getDirectoryPrefixes();
+
+            addPathPrefixes(prefixes, ModulePathTrie.toPrefix(moduleGraph.getModulePath(module)), directoryPrefixes);
+            if(usesDependencies(module)){
+                final BitSet dependencies = moduleGraph.getTransitiveDependencies(module);
+                for(int dependency = dependencies.nextSetBit(0); dependency >= 0; dependency = dependencies.nextSetBit(dependency + 1)){
+                    addPathPrefixes(prefixes, moduleGraph.getModuleDirectory(dependency), directoryPrefixes);
+                }
+            }
+        }
+
+        //Nothing under a prefix that is already there needs to be listed
+        final SortedSet<String> result = new TreeSet<>();
+        for(final String prefix : new TreeSet<>(prefixes)){
+            if(prefix.isEmpty()){
+                return new TreeSet<>(Collections.singleton(""));
+            }
+            if(!hasAncestorIn(result, prefix)){
+                result.add(prefix);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasAncestorIn(final Set<String> directories, final String path) {
+        for(int separator = path.indexOf('/'); separator >= 0; separator = path.indexOf('/', separator + 1)){
+            if(directories.contains(path.substring(0, separator))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addPathPrefixes(final Set<String> prefixes, final String modulePrefix, final Set<String> directoryPrefixes) {
+        for(final String directoryPrefix : directoryPrefixes){
+            final String prefix = modulePrefix + directoryPrefix;
+            prefixes.add(prefix.startsWith("/") ? prefix.substring(1) : prefix);
+        }
+    }
+
+    /*
+    Dependencies are only considered for modules with a runtime configuration and never for the root project
+     */
+    public boolean usesDependencies(final int module) {
+        return moduleGraph.getParent(module) >= 0 && moduleGraph.hasRuntimeConfiguration(module);
+    }
+
+    private BitSet getModulesWithChanges(final List<Integer> modules, final List<String> pathsWithDiff) {
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.MATCHING)) {
+            Metrics.count(Metrics.Counter.MODULES_VISITED, modules.size());
+            return matchModules(modules, pathsWithDiff);
+        }
+    }
+
+    private BitSet matchModules(final List<Integer> modules, final List<String> pathsWithDiff) {
+
+        final Map<Set<String>, PatternGroup> groupsByFilePatterns = new LinkedHashMap<>();
+        final PatternGroup[] groupOfModule = new PatternGroup[moduleGraph.size()];
+
+        for(final int module : modules){
+            final PatternGroup group = groupsByFilePatterns.computeIfAbsent(getFilePatterns(module),
+                    filePatterns -> new PatternGroup(groupsByFilePatterns.size(), filePatterns));
+            group.modules.set(module);
+            groupOfModule[module] = group;
+            if(usesDependencies(module)){
+                group.dependencies.or(moduleGraph.getTransitiveDependencies(module));
+            }
+        }
+
+        final List<PatternGroup> groups = new ArrayList<>(groupsByFilePatterns.values());
+
+        //Each path is matched independently, so large diffs are split between cores and the matches merged
+        final PathMatches pathMatches = pathsWithDiff.size() <= PATHS_PER_TASK
+                ? matchPaths(groups, groupOfModule, pathsWithDiff)
+                : getPool().invoke(new MatchPathsTask(groups, groupOfModule, pathsWithDiff));
+
+        final BitSet result = new BitSet(moduleGraph.size());
+
+        for(final PatternGroup group : groups){
+            final BitSet changedModules = pathMatches.changedModules[group.index];
+            final BitSet reached = moduleGraph.propagateToDependents(pathMatches.changedDependencies[group.index]);
+            for(int module = group.modules.nextSetBit(0); module >= 0; module = group.modules.nextSetBit(module + 1)){
+                if(changedModules.get(module) || (usesDependencies(module) && reached.get(module))){
+                    result.set(module);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private PathMatches matchPaths(final List<PatternGroup> groups, final PatternGroup[] groupOfModule, final List<String> pathsWithDiff) {
+
+        final PathMatches pathMatches = new PathMatches(groups.size());
+        final PathsMatch pathsMatch = new PathsMatch(groups, groupOfModule, pathMatches);
+        final ModulePathTrie pathTrie = moduleGraph.getPathTrie();
+        final PathBuffer path = new PathBuffer();
+
+        for(final String pathWithDiff : pathsWithDiff){
+            //Only modules whose directory the path is in can match it
+            pathsMatch.path = path.set(pathWithDiff);
+            pathTrie.route(path, pathsMatch);
+        }
+        Metrics.count(Metrics.Counter.REGEX_EVALUATIONS, pathsMatch.regexEvaluations);
+        return pathMatches;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if(pool == null){
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /*
+    Modules that share the same file patterns
+     */
+    private class PatternGroup {
+
+        final int index;
+        final FilePatternMatcher filePatternMatcher;
+
+        final BitSet modules = new BitSet(moduleGraph.size());
+        final BitSet dependencies = new BitSet(moduleGraph.size());
+
+        PatternGroup(final int index, final Set<String> filePatterns) {
+            this.index = index;
+            this.filePatternMatcher = FilePatternMatcher.forPatterns(filePatterns);
+        }
+    }
+
+    /*
+    Records what each path routed to it changes, reusing one matcher per pattern group so matching doesn't allocate
+     */
+    private class PathsMatch implements ModulePathTrie.Visitor {
+
+        final List<PatternGroup> groups;
+        final PatternGroup[] groupOfModule;
+        final PathMatches pathMatches;
+        final Matcher[] matchers;
+
+        CharSequence path;
+        long regexEvaluations = 0;
+
+        PathsMatch(final List<PatternGroup> groups, final PatternGroup[] groupOfModule, final PathMatches pathMatches) {
+            this.groups = groups;
+            this.groupOfModule = groupOfModule;
+            this.pathMatches = pathMatches;
+            this.matchers = new Matcher[groups.size()];
+            for(final PatternGroup group : groups){
+                matchers[group.index] = group.filePatternMatcher.newMatcher();
+            }
+        }
+
+        @Override
+        public void visit(final int module, final boolean isProjectDirectory, final int tailStart) {
+            if(isProjectDirectory){
+                for(final PatternGroup group : groups){
+                    final BitSet changedDependencies = pathMatches.changedDependencies[group.index];
+                    if(group.dependencies.get(module) && !changedDependencies.get(module)){
+                        regexEvaluations++;
+                        if(FilePatternMatcher.matches(matchers[group.index], path, tailStart)){
+                            changedDependencies.set(module);
+                        }
+                    }
+                }
+            }
+            else {
+                final PatternGroup group = groupOfModule[module];
+                if(group != null && !pathMatches.changedModules[group.index].get(module)){
+                    regexEvaluations++;
+                    if(FilePatternMatcher.matches(matchers[group.index], path, tailStart)){
+                        pathMatches.changedModules[group.index].set(module);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+    Whether single paths change one module, see changesModule
+     */
+    private class SinglePathMatch implements Predicate<CharSequence>, ModulePathTrie.Visitor {
+
+        final int module;
+        final BitSet dependencies;
+        final Matcher matcher;
+        final ModulePathTrie pathTrie = moduleGraph.getPathTrie();
+        final PathBuffer pathBuffer = new PathBuffer();
+
+        CharSequence path;
+        boolean changed;
+        int regexEvaluations;
+
+        SinglePathMatch(final int module) {
+            this.module = module;
+            this.dependencies = usesDependencies(module) ? moduleGraph.getTransitiveDependencies(module) : new BitSet();
+            this.matcher = FilePatternMatcher.forPatterns(getFilePatterns(module)).newMatcher();
+        }
+
+        @Override
+        public boolean test(final CharSequence pathWithDiff) {
+            //A PathBuffer is already normalized
+            path = pathWithDiff instanceof PathBuffer ? pathWithDiff : pathBuffer.set(pathWithDiff);
+            changed = false;
+            regexEvaluations = 0;
+            pathTrie.route(path, this);
+            Metrics.count(Metrics.Counter.REGEX_EVALUATIONS, regexEvaluations);
+            return changed;
+        }
+
+        @Override
+        public void visit(final int owner, final boolean isProjectDirectory, final int tailStart) {
+            if(!changed && (isProjectDirectory ? dependencies.get(owner) : owner == module)){
+                regexEvaluations++;
+                changed = FilePatternMatcher.matches(matcher, path, tailStart);
+            }
+        }
+    }
+
+    /*
+    Finds the first path that changed each of a set of modules, the same way PathsMatch does, but matching each
+    pattern on its own so the one that matched can be reported
+     */
+    private class EvidenceSearch implements ModulePathTrie.Visitor {
+
+        final BitSet unexplained;
+        final DecisionTrace trace;
+        final BitSet[] dependencies = new BitSet[moduleGraph.size()];
+
+        CharSequence path;
+
+        EvidenceSearch(final BitSet modules, final DecisionTrace trace) {
+            this.unexplained = (BitSet) modules.clone();
+            this.trace = trace;
+            for(int module = modules.nextSetBit(0); module >= 0; module = modules.nextSetBit(module + 1)){
+                dependencies[module] = usesDependencies(module) ? moduleGraph.getTransitiveDependencies(module) : new BitSet();
+            }
+        }
+
+        void search(final List<String> pathsWithDiff) {
+            final ModulePathTrie pathTrie = moduleGraph.getPathTrie();
+            final PathBuffer pathBuffer = new PathBuffer();
+            for(final String pathWithDiff : pathsWithDiff){
+                if(unexplained.isEmpty()){
+                    return;
+                }
+                path = pathBuffer.set(pathWithDiff);
+                pathTrie.route(path, this);
+            }
+        }
+
+        @Override
+        public void visit(final int owner, final boolean isProjectDirectory, final int tailStart) {
+            if(!isProjectDirectory){
+                if(unexplained.get(owner)){
+                    explainIfMatched(owner, owner, tailStart);
+                }
+                return;
+            }
+            for(int module = unexplained.nextSetBit(0); module >= 0; module = unexplained.nextSetBit(module + 1)){
+                if(dependencies[module].get(owner)){
+                    explainIfMatched(module, owner, tailStart);
+                }
+            }
+        }
+
+        private void explainIfMatched(final int module, final int owner, final int tailStart) {
+            final Optional<String> pattern = FilePatternMatcher.forPatterns(getFilePatterns(module)).findMatchingPattern(path, tailStart);
+            if(pattern.isPresent()){
+                unexplained.clear(module);
+                trace.changedBy(moduleGraph.getModulePath(module),
+                        owner == module ? DecisionTrace.Source.SELF : DecisionTrace.Source.DEPENDENCY,
+                        path.toString(),
+                        pattern.get(),
+                        owner == module ? null : moduleGraph.getModulePath(owner));
+            }
+        }
+    }
+
+    /*
+    What a run of paths was found to change, for each pattern group
+     */
+    private class PathMatches {
+
+        //Modules matched by their own gradle path
+        final BitSet[] changedModules;
+        //Modules matched by project directory, not yet propagated to dependents
+        final BitSet[] changedDependencies;
+
+        PathMatches(final int groups) {
+            this.changedModules = new BitSet[groups];
+            this.changedDependencies = new BitSet[groups];
+            for(int i = 0; i < groups; i++){
+                changedModules[i] = new BitSet(moduleGraph.size());
+                changedDependencies[i] = new BitSet(moduleGraph.size());
+            }
+        }
+
+        PathMatches merge(final PathMatches other) {
+            for(int i = 0; i < changedModules.length; i++){
+                changedModules[i].or(other.changedModules[i]);
+                changedDependencies[i].or(other.changedDependencies[i]);
+            }
+            return this;
+        }
+    }
+
+    private class MatchPathsTask extends RecursiveTask<PathMatches> {
+
+        private final List<PatternGroup> groups;
+        private final PatternGroup[] groupOfModule;
+        private final List<String> pathsWithDiff;
+
+        MatchPathsTask(final List<PatternGroup> groups, final PatternGroup[] groupOfModule, final List<String> pathsWithDiff) {
+            this.groups = groups;
+            this.groupOfModule = groupOfModule;
+            this.pathsWithDiff = pathsWithDiff;
+        }
+
+        @Override
+        protected PathMatches compute() {
+            if(pathsWithDiff.size() <= PATHS_PER_TASK){
+                return matchPaths(groups, groupOfModule, pathsWithDiff);
+            }
+            final int middle = pathsWithDiff.size() / 2;
+            final MatchPathsTask firstHalf = new MatchPathsTask(groups, groupOfModule, pathsWithDiff.subList(0, middle));
+            final MatchPathsTask secondHalf = new MatchPathsTask(groups, groupOfModule, pathsWithDiff.subList(middle, pathsWithDiff.size()));
+            firstHalf.fork();
+            return secondHalf.compute().merge(firstHalf.join());
+        }
+    }
+}
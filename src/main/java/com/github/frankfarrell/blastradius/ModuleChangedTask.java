@@ -3,37 +3,112 @@ package com.github.frankfarrell.blastradius;
 import com.github.frankfarrell.blastradius.DiffStrategy;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.gradle.api.Project;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.internal.ConventionTask;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.TaskState;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
 
+import javax.inject.Inject;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * Created by frankfarrell on 11/09/2017.
+ *
+ * The result is also written to a file, so the task can be up to date or loaded from the build cache
+ * when neither the commits being compared, the patterns nor the module graph have changed.
+ *
+ * The check runs with the Worker API, so with --parallel the checks of every module overlap with each other and with
+ * compilation. The result is only available once the task has finished: reading toDeploy throws an
+ * IllegalStateException if the task isn't in the task graph, hasn't run yet, failed or was skipped in this build.
  */
+@CacheableTask
 public class ModuleChangedTask extends ConventionTask {
 
     private static Logger logger = Logging.getLogger(ModuleChangedTask.class);
 
+    /*
+    Only known once the task has run, or was up to date or loaded from the build cache, in this build. A result file
+    left by an earlier build isn't used otherwise, it throws an IllegalStateException instead
+     */
     public boolean getToDeploy() {
+        if(toDeploy == null){
+            toDeploy = readResult(getPath(), getState(), getResultFile());
+        }
         return toDeploy;
     }
 
-    private boolean toDeploy;
+    private Boolean toDeploy;
+
+    private final WorkerExecutor workerExecutor;
+
+    //Everything the action needs is captured when the task is configured, so it never goes back to the project
+    private final String modulePath;
+    private final File rootDirectory;
+    private final Directory rootProjectDirectory;
+    private final DirectoryProperty buildDirectory;
+    private final Property<ModuleGraph> moduleGraph;
+
+    private final Property<String> diffStrategy;
+
+    private final Property<String> previousCommit;
+
+    //Relative to the root project, like the ledger a ProjectModulesChangedTask on the root project uses by default
+    private final Property<String> ledgerLocation;
+
+    //Compare the git trees of the directories the patterns can match before looking at any changed files
+    private boolean useSubtreeFingerprints = false;
 
-    private DiffStrategy diffStrategy = DiffStrategy.JENKINS_LAST_COMMIT;
+    @Inject
+    public ModuleChangedTask(final WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
 
-    private String previousCommit;
+        final Project project = getProject();
+        final ObjectFactory objects = project.getObjects();
+
+        this.modulePath = project.getPath();
+        this.rootDirectory = project.getRootDir();
+        this.rootProjectDirectory = project.getRootProject().getLayout().getProjectDirectory();
+        this.buildDirectory = project.getLayout().getBuildDirectory();
+        //Set once every project has been configured, so the action never builds it from the project
+        this.moduleGraph = objects.property(ModuleGraph.class);
+        ModuleGraph.captureWhenTaskGraphIsReady(this, moduleGraph);
+        GitDiffService.closeWhenBuildFinishes(project);
+
+        this.diffStrategy = objects.property(String.class);
+        this.diffStrategy.set(DiffStrategy.JENKINS_LAST_COMMIT.name());
+
+        //Uncommitted changes aren't an input, so the result can't be reused
+        getOutputs().upToDateWhen(task -> getStrategy() != DiffStrategy.WORKING_TREE);
+        getOutputs().doNotCacheIf("The working tree is compared", task -> getStrategy() == DiffStrategy.WORKING_TREE);
+        this.previousCommit = objects.property(String.class);
+        this.ledgerLocation = objects.property(String.class);
+        this.ledgerLocation.set(DeployLedger.DEFAULT_LEDGER_LOCATION);
+    }
 
     public static final Set<String> DEFAULT_FILE_PATTERNS =  Collections.unmodifiableSet(Stream.of("/[^.]*.gradle", "/src/main/.*", "/deploy/.*").collect(Collectors.toSet()));
 
     private List<String> filePatterns;
 
+    @Input
+    @org.gradle.api.tasks.Optional
     public List<String> getFilePatterns() {
         return filePatterns;
     }
@@ -42,28 +117,150 @@ public class ModuleChangedTask extends ConventionTask {
         this.filePatterns = filePatterns;
     }
 
+    @Input
+    public String getDiffStrategy() {
+        return DiffStrategy.valueOf(diffStrategy.get()).name();
+    }
+
     public void setDiffStrategy(final String diffStrategy) {
-        this.diffStrategy = DiffStrategy.valueOf(diffStrategy);
+        this.diffStrategy.set(DiffStrategy.valueOf(diffStrategy).name());
+    }
+
+    public void setDiffStrategy(final Provider<String> diffStrategy) {
+        this.diffStrategy.set(diffStrategy);
     }
 
+    @Input
+    @org.gradle.api.tasks.Optional
     public String getPreviousCommit() {
-        return previousCommit;
+        return previousCommit.getOrNull();
     }
 
     public void setPreviousCommit(String previousCommit) {
-        this.previousCommit = previousCommit;
+        this.previousCommit.set(previousCommit);
+    }
+
+    public void setPreviousCommit(final Provider<String> previousCommit) {
+        this.previousCommit.set(previousCommit);
+    }
+
+    @Input
+    public boolean getUseSubtreeFingerprints() {
+        return useSubtreeFingerprints;
+    }
+
+    public void setUseSubtreeFingerprints(final boolean useSubtreeFingerprints) {
+        this.useSubtreeFingerprints = useSubtreeFingerprints;
+    }
+
+    @Internal
+    public String getLedgerLocation() {
+        return ledgerLocation.get();
+    }
+
+    public void setLedgerLocation(final String ledgerLocation) {
+        this.ledgerLocation.set(ledgerLocation == null ? DeployLedger.DEFAULT_LEDGER_LOCATION : ledgerLocation);
+    }
+
+    /*
+    The commit to compare with. For the LEDGER strategy it's the one this module was last deployed from
+     */
+    private Optional<String> getBaseCommit() {
+        if(getStrategy() != DiffStrategy.LEDGER){
+            return Optional.ofNullable(getPreviousCommit());
+        }
+        try {
+            return DeployLedger.read(rootProjectDirectory.file(getLedgerLocation()).getAsFile()).getLastDeployedCommit(modulePath);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read deploy ledger " + getLedgerLocation() + ": " + e.getMessage(), e);
+        }
     }
 
+    private DiffStrategy getStrategy() {
+        return DiffStrategy.valueOf(diffStrategy.get());
+    }
+
+    @Input
+    public String getCommitIds() {
+        return GitDiffService.forRootDirectory(rootDirectory).getCommitIdsDescription(getStrategy(), getBaseCommit());
+    }
+
+    //The build cache key leaves out the task path, and every other input can be the same in every module
+    @Input
+    public String getModulePath() {
+        return modulePath;
+    }
+
+    @Input
+    public String getModuleGraphFingerprint() {
+        return ModuleGraph.captured(getPath(), moduleGraph).getFingerprint();
+    }
+
+    @OutputFile
+    public File getResultFile() {
+        return buildDirectory.get().file("blast-radius/" + getName() + ".toDeploy").getAsFile();
+    }
+
+    //Timings and counters of the build up to this task, see Metrics
+    @Internal
+    public File getMetricsFile() {
+        return buildDirectory.get().file("blast-radius/" + getName() + Metrics.FILE_SUFFIX).getAsFile();
+    }
+
+    /*
+    The check itself runs as work for the Worker API, see ModuleChangedWork, and the result is read back from the file
+     */
     @TaskAction
-    public void shouldModuleBeDeployedTask() throws IOException, GitAPIException {
+    public void shouldModuleBeDeployedTask() {
 
         //Sensible defaults
-        if(filePatterns == null){
-            toDeploy = shouldModuleBeDeployed(getProject(), DEFAULT_FILE_PATTERNS);
+        final Set<String> filePatterns = new HashSet<>(this.filePatterns == null ? DEFAULT_FILE_PATTERNS : this.filePatterns);
+
+        toDeploy = null;
+        final Object[] params = {
+                rootDirectory,
+                ModuleGraph.captured(getPath(), moduleGraph),
+                modulePath,
+                filePatterns,
+                getStrategy().name(),
+                //Worker params can't be null
+                getBaseCommit().orElse(""),
+                useSubtreeFingerprints,
+                getResultFile(),
+                getMetricsFile()};
+
+        workerExecutor.submit(ModuleChangedWork.class, workerConfiguration -> {
+            workerConfiguration.setIsolationMode(IsolationMode.NONE);
+            workerConfiguration.setDisplayName("Checking whether " + modulePath + " has changed");
+            workerConfiguration.setParams(params);
+        });
+    }
+
+    //The result file holds "true" or "false"
+    static void writeResult(final File resultFile, final boolean toDeploy) throws IOException {
+        resultFile.getParentFile().mkdirs();
+        Files.write(resultFile.toPath(), String.valueOf(toDeploy).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static boolean readResult(final String taskPath, final TaskState state, final File resultFile) {
+        if(!state.getExecuted()){
+            throw new IllegalStateException(taskPath + " hasn't run in this build, so whether the module has changed isn't known");
         }
-        else{
-            toDeploy = shouldModuleBeDeployed(getProject(), new HashSet<>(filePatterns));
+        if(state.getFailure() != null){
+            throw new IllegalStateException(taskPath + " failed, so whether the module has changed isn't known", state.getFailure());
         }
+        if(state.getSkipped() && !state.getUpToDate()){
+            throw new IllegalStateException(taskPath + " was skipped, so whether the module has changed isn't known");
+        }
+        try {
+            return readResult(resultFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read result of " + taskPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    static boolean readResult(final File resultFile) throws IOException {
+        return Boolean.parseBoolean(new String(Files.readAllBytes(resultFile.toPath()), StandardCharsets.UTF_8).trim());
     }
 
     public boolean shouldModuleBeDeployed(final Project project, Set<String> filePatterns) throws IOException, GitAPIException {
@@ -75,10 +272,43 @@ public class ModuleChangedTask extends ConventionTask {
     Will also return true if this is the first ever commit
      */
     public boolean shouldModuleBeDeployed(final Project project, final GradleModule gradleModule, Set<String> filePatterns) throws IOException, GitAPIException {
+        GitDiffService.closeWhenBuildFinishes(project);
+        return shouldModuleBeDeployed(gradleModule, filePatterns);
+    }
+
+    public boolean shouldModuleBeDeployed(final GradleModule gradleModule, final Set<String> filePatterns) throws IOException {
+        return shouldModuleBeDeployed(GitDiffService.forRootDirectory(rootDirectory), gradleModule, filePatterns,
+                getStrategy(), getBaseCommit(), useSubtreeFingerprints);
+    }
+
+    static boolean shouldModuleBeDeployed(final GitDiffService gitDiffService,
+                                          final GradleModule gradleModule,
+                                          final Set<String> filePatterns,
+                                          final DiffStrategy diffStrategy,
+                                          final Optional<String> baseCommit,
+                                          final boolean useSubtreeFingerprints) throws IOException {
+
+        SortedSet<String> pathPrefixes = gradleModule.getPathPrefixes(filePatterns);
+
+        if(useSubtreeFingerprints){
+            final Optional<SortedSet<String>> changedSubtrees = gitDiffService
+                    .getChangedSubtrees(diffStrategy, baseCommit, pathPrefixes);
+            if(changedSubtrees.isPresent() && changedSubtrees.get().isEmpty()){
+                logger.info("No subtree that could change {} has changed", gradleModule.getModulePath());
+                return false;
+            }
+            pathPrefixes = changedSubtrees.orElse(pathPrefixes);
+        }
+
+        //Stops looking at the diff as soon as one deploy-worthy change is found
+        final Optional<Boolean> anyChange = gitDiffService
+                .anyPathHasChanged(diffStrategy,
+                        baseCommit,
+                        pathPrefixes,
+                        gradleModule.changesModule(filePatterns));
 
-        final GitRepository gitRepository = new GitRepository();
-        final Optional<List<String>> pathsWithDiffOptional = gitRepository.getPathsThatHaveChanged(diffStrategy, Optional.ofNullable(previousCommit));
+        logger.info("Is there any change?  {}", anyChange);
 
-        return pathsWithDiffOptional.map(pathsWithDiff -> gradleModule.hasChanged(filePatterns, pathsWithDiff)).orElse(true);
+        return anyChange.orElse(true);
     }
 }
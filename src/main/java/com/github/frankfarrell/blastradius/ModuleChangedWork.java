@@ -0,0 +1,69 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.GradleException;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The check a {@link ModuleChangedTask} does, run with the Worker API so it doesn't hold up a task thread while git
+ * is read, and so the checks of every module can run at the same time as each other and as other tasks.
+ *
+ * It runs without isolation, in the daemon's class loader, so it uses the same {@link GitDiffService} as every other
+ * task in the build, and a diff is still only computed once.
+ */
+public class ModuleChangedWork implements Runnable {
+
+    private final File rootDirectory;
+    private final ModuleGraph moduleGraph;
+    private final String modulePath;
+    private final Set<String> filePatterns;
+    private final String diffStrategy;
+    //Empty when there's no base commit
+    private final String baseCommit;
+    private final boolean useSubtreeFingerprints;
+    private final File resultFile;
+    private final File metricsFile;
+
+    @Inject
+    public ModuleChangedWork(final File rootDirectory,
+                             final ModuleGraph moduleGraph,
+                             final String modulePath,
+                             final Set<String> filePatterns,
+                             final String diffStrategy,
+                             final String baseCommit,
+                             final Boolean useSubtreeFingerprints,
+                             final File resultFile,
+                             final File metricsFile) {
+        this.rootDirectory = rootDirectory;
+        this.moduleGraph = moduleGraph;
+        this.modulePath = modulePath;
+        this.filePatterns = filePatterns;
+        this.diffStrategy = diffStrategy;
+        this.baseCommit = baseCommit;
+        this.useSubtreeFingerprints = useSubtreeFingerprints;
+        this.resultFile = resultFile;
+        this.metricsFile = metricsFile;
+    }
+
+    @Override
+    public void run() {
+        try {
+            final boolean toDeploy = ModuleChangedTask.shouldModuleBeDeployed(
+                    GitDiffService.forRootDirectory(rootDirectory),
+                    new GradleModule(moduleGraph, modulePath),
+                    filePatterns,
+                    DiffStrategy.valueOf(diffStrategy),
+                    baseCommit.isEmpty() ? Optional.empty() : Optional.of(baseCommit),
+                    useSubtreeFingerprints);
+
+            ModuleChangedTask.writeResult(resultFile, toDeploy);
+        } catch (IOException e) {
+            throw new GradleException("Couldn't work out whether " + modulePath + " has changed", e);
+        }
+        Metrics.writeReport(metricsFile);
+    }
+}
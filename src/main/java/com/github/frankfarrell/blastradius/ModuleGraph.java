@@ -0,0 +1,433 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ProjectDependency;
+import org.gradle.api.artifacts.UnknownConfigurationException;
+import org.gradle.api.execution.TaskExecutionGraph;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.plugins.ExtraPropertiesExtension;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Indexed view of every module in a build and the project dependencies between them.
+ *
+ * Each module gets an integer index so that sets of modules can be held in BitSets. The reflexive transitive closure
+ * of every module's runtime project dependencies is computed once when the graph is built, so looking up a module's
+ * dependencies never walks Gradle configurations again.
+ *
+ * Build it once per build with {@link #forBuild(Project)}, after configuration has finished. It holds no reference to
+ * Gradle's model, so tasks capture it with {@link #captureWhenTaskGraphIsReady} and use it when they run without the
+ * project.
+ */
+public class ModuleGraph implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = Logging.getLogger(ModuleGraph.class);
+
+    static final String EXTRA_PROPERTY_NAME = "blastRadiusModuleGraph";
+
+    private static final String RUNTIME_CONFIGURATION = "runtime";
+
+    private final String[] modulePaths;
+    private final String[] moduleDirectories;
+    private final boolean[] hasRuntimeConfiguration;
+    private final int[] parents;
+    private final int[][] children;
+    private final int[][] dependencies;
+
+    private final Map<String, Integer> indexByPath;
+
+    //Dependencies always come before their dependents
+    private final int[] topologicalOrder;
+    private final boolean cyclic;
+    private final BitSet[] closures;
+
+    //Built again on first use after deserialization
+    private transient ModulePathTrie pathTrie;
+
+    private ModuleGraph(final List<Builder.Module> modules) {
+        final int size = modules.size();
+
+        this.modulePaths = new String[size];
+        this.moduleDirectories = new String[size];
+        this.hasRuntimeConfiguration = new boolean[size];
+        this.parents = new int[size];
+        this.children = new int[size][];
+        this.dependencies = new int[size][];
+        this.indexByPath = new HashMap<>();
+
+        for(int i = 0; i < size; i++){
+            final Builder.Module module = modules.get(i);
+            modulePaths[i] = module.path;
+            moduleDirectories[i] = module.directory;
+            hasRuntimeConfiguration[i] = module.hasRuntimeConfiguration;
+            indexByPath.put(module.path, i);
+        }
+
+        for(int i = 0; i < size; i++){
+            final Builder.Module module = modules.get(i);
+            parents[i] = module.parentPath == null ? -1 : indexOf(module.parentPath);
+            dependencies[i] = module.dependencyPaths.stream()
+                    .mapToInt(this::indexOf)
+                    .distinct()
+                    .toArray();
+        }
+
+        final List<List<Integer>> childLists = new ArrayList<>();
+        for(int i = 0; i < size; i++){
+            childLists.add(new ArrayList<>());
+        }
+        for(int i = 0; i < size; i++){
+            if(parents[i] >= 0){
+                childLists.get(parents[i]).add(i);
+            }
+        }
+        for(int i = 0; i < size; i++){
+            children[i] = childLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        final boolean[] cyclicHolder = new boolean[1];
+        this.topologicalOrder = sortTopologically(dependencies, cyclicHolder);
+        this.cyclic = cyclicHolder[0];
+        this.closures = computeClosures();
+    }
+
+    /*
+    Returns the graph for the build that project belongs to, building it on first use.
+    All tasks and modules in a build share the same instance
+     */
+    public static ModuleGraph forBuild(final Project project) {
+        final Project rootProject = project.getRootProject();
+        final ExtraPropertiesExtension extraProperties = rootProject.getExtensions().getExtraProperties();
+
+        synchronized (rootProject) {
+            if(extraProperties.has(EXTRA_PROPERTY_NAME)){
+                return (ModuleGraph) extraProperties.get(EXTRA_PROPERTY_NAME);
+            }
+            final ModuleGraph moduleGraph = fromProject(rootProject);
+            extraProperties.set(EXTRA_PROPERTY_NAME, moduleGraph);
+            return moduleGraph;
+        }
+    }
+
+    /*
+    Sets moduleGraph to the graph of the build once the task graph is ready, if task is in it, when every project has
+    been configured. The task then holds the graph itself rather than something that builds it from the project, so
+    snapshotting its inputs and running its action never go back to the project
+     */
+    public static void captureWhenTaskGraphIsReady(final Task task, final Property<ModuleGraph> moduleGraph) {
+        final Project project = task.getProject();
+        project.getGradle().getTaskGraph().whenReady(capture(task.getPath(), () -> forBuild(project), moduleGraph));
+    }
+
+    //Sets moduleGraph from build once the task graph is ready, if the task with taskPath is going to run
+    static Action<TaskExecutionGraph> capture(final String taskPath, final Supplier<ModuleGraph> build, final Property<ModuleGraph> moduleGraph) {
+        return taskGraph -> {
+            if(taskGraph.hasTask(taskPath)){
+                moduleGraph.set(build.get());
+            }
+        };
+    }
+
+    //The graph captured for the task with taskPath by captureWhenTaskGraphIsReady
+    public static ModuleGraph captured(final String taskPath, final Provider<ModuleGraph> moduleGraph) {
+        final ModuleGraph captured = moduleGraph.getOrNull();
+        if(captured == null){
+            throw new GradleException("The module graph is only captured for " + taskPath + " when it's in the task graph");
+        }
+        return captured;
+    }
+
+    public static ModuleGraph fromProject(final Project rootProject) {
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.DEPENDENCY_RESOLUTION)) {
+            return buildFromProject(rootProject);
+        }
+    }
+
+    private static ModuleGraph buildFromProject(final Project rootProject) {
+
+        final String rootPath = rootProject.getRootDir().getAbsolutePath();
+        final Builder builder = new Builder();
+
+        for(final Project project : rootProject.getAllprojects()){
+
+            final Optional<Configuration> runtime = getRuntimeConfiguration(project);
+
+            builder.addModule(project.getPath(),
+                    relativeDirectory(project, rootPath),
+                    project.getParent() == null ? null : project.getParent().getPath(),
+                    runtime.isPresent());
+
+            runtime.ifPresent(config ->
+                    config.getAllDependencies()
+                            .withType(ProjectDependency.class)
+                            .forEach(dependency -> builder.addDependency(project.getPath(), dependency.getDependencyProject().getPath())));
+        }
+
+        final ModuleGraph moduleGraph = builder.build();
+        logger.info("Built module graph with {} modules", moduleGraph.size());
+        return moduleGraph;
+    }
+
+    private static Optional<Configuration> getRuntimeConfiguration(final Project project) {
+        try{
+            return Optional.of(project.getConfigurations().getAt(RUNTIME_CONFIGURATION));
+        }
+        catch (UnknownConfigurationException e){
+            //Eg if it is not a java project, since runtime is added by java configuration
+            return Optional.empty();
+        }
+    }
+
+    private static String relativeDirectory(final Project project, final String rootPath) {
+        return project.getProjectDir().getAbsolutePath()
+                .replace(rootPath, "")
+                .replace("\\", "/");
+    }
+
+    public int size() {
+        return modulePaths.length;
+    }
+
+    public int indexOf(final String modulePath) {
+        final Integer index = indexByPath.get(modulePath);
+        if(index == null){
+            throw new IllegalArgumentException("Unknown module " + modulePath);
+        }
+        return index;
+    }
+
+    public boolean contains(final String modulePath) {
+        return indexByPath.containsKey(modulePath);
+    }
+
+    public String getModulePath(final int index) {
+        return modulePaths[index];
+    }
+
+    //Project directory relative to the root directory, with a leading "/". Empty for the root project
+    public String getModuleDirectory(final int index) {
+        return moduleDirectories[index];
+    }
+
+    public boolean hasRuntimeConfiguration(final int index) {
+        return hasRuntimeConfiguration[index];
+    }
+
+    public int getParent(final int index) {
+        return parents[index];
+    }
+
+    public int[] getDependencies(final int index) {
+        return dependencies[index].clone();
+    }
+
+    /*
+    The module itself plus everything it depends on at runtime, directly or transitively
+     */
+    public BitSet getTransitiveDependencies(final int index) {
+        return (BitSet) closures[index].clone();
+    }
+
+    /*
+    Changes whenever a module is added, moved or removed or a project dependency changes
+     */
+    public String getFingerprint() {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for(int i = 0; i < size(); i++){
+            final StringBuilder module = new StringBuilder()
+                    .append(modulePaths[i]).append('\0')
+                    .append(moduleDirectories[i]).append('\0')
+                    .append(hasRuntimeConfiguration[i]).append('\0');
+            for(final int dependency : dependencies[i]){
+                module.append(modulePaths[dependency]).append(',');
+            }
+            module.append('\n');
+            digest.update(module.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        final StringBuilder hex = new StringBuilder();
+        for(final byte b : digest.digest()){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public synchronized ModulePathTrie getPathTrie() {
+        if(pathTrie == null){
+            pathTrie = new ModulePathTrie(this);
+        }
+        return pathTrie;
+    }
+
+    /*
+    The module and all modules nested below it, in the order a depth first walk of the project tree would visit them
+     */
+    public List<Integer> getModuleAndDescendants(final int index) {
+        final List<Integer> result = new ArrayList<>();
+        final Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(index);
+        while(!stack.isEmpty()){
+            final int next = stack.pop();
+            result.add(next);
+            for(int i = children[next].length - 1; i >= 0; i--){
+                stack.push(children[next][i]);
+            }
+        }
+        return result;
+    }
+
+    /*
+    Given a set of modules that changed themselves, returns every module that has one of them in its
+    transitive dependencies. Done in one pass over the modules with dependencies before dependents.
+     */
+    public BitSet propagateToDependents(final BitSet changedModules) {
+        final BitSet result = (BitSet) changedModules.clone();
+
+        boolean updated;
+        do {
+            updated = false;
+            for(final int module : topologicalOrder){
+                if(!result.get(module)){
+                    for(final int dependency : dependencies[module]){
+                        if(result.get(dependency)){
+                            result.set(module);
+                            updated = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        //A single pass is enough unless project dependencies form a cycle
+        while (updated && cyclic);
+
+        return result;
+    }
+
+    private BitSet[] computeClosures() {
+        final BitSet[] result = new BitSet[size()];
+        for(int i = 0; i < result.length; i++){
+            result[i] = new BitSet(size());
+            result[i].set(i);
+        }
+
+        boolean updated;
+        do {
+            updated = false;
+            for(final int module : topologicalOrder){
+                final BitSet closure = result[module];
+                final int cardinality = closure.cardinality();
+                for(final int dependency : dependencies[module]){
+                    closure.or(result[dependency]);
+                }
+                updated |= closure.cardinality() != cardinality;
+            }
+        }
+        while (updated && cyclic);
+
+        return result;
+    }
+
+    //Iterative post order depth first search, so deep graphs don't overflow the stack
+    private static int[] sortTopologically(final int[][] dependencies, final boolean[] cyclic) {
+        final int size = dependencies.length;
+        final int[] order = new int[size];
+        final int[] state = new int[size]; //0 unvisited, 1 in progress, 2 done
+        final int[] nextChild = new int[size];
+        final Deque<Integer> stack = new ArrayDeque<>();
+        int position = 0;
+
+        for(int start = 0; start < size; start++){
+            if(state[start] != 0){
+                continue;
+            }
+            stack.push(start);
+            state[start] = 1;
+            while(!stack.isEmpty()){
+                final int current = stack.peek();
+                if(nextChild[current] < dependencies[current].length){
+                    final int child = dependencies[current][nextChild[current]++];
+                    if(state[child] == 0){
+                        state[child] = 1;
+                        stack.push(child);
+                    }
+                    else if(state[child] == 1){
+                        cyclic[0] = true;
+                    }
+                }
+                else {
+                    stack.pop();
+                    state[current] = 2;
+                    order[position++] = current;
+                }
+            }
+        }
+        return order;
+    }
+
+    /*
+    Used to build a graph without a gradle project, eg in tests
+     */
+    public static class Builder {
+
+        private final List<Module> modules = new ArrayList<>();
+
+        private final Map<String, Module> modulesByPath = new HashMap<>();
+
+        public Builder addModule(final String path, final String directory, final String parentPath, final boolean hasRuntimeConfiguration) {
+            final Module module = new Module(path, directory, parentPath, hasRuntimeConfiguration);
+            if(modulesByPath.putIfAbsent(path, module) != null){
+                throw new IllegalArgumentException("Module " + path + " added twice");
+            }
+            modules.add(module);
+            return this;
+        }
+
+        public Builder addDependency(final String fromPath, final String toPath) {
+            final Module module = modulesByPath.get(fromPath);
+            if(module == null){
+                throw new IllegalArgumentException("Unknown module " + fromPath);
+            }
+            module.dependencyPaths.add(toPath);
+            return this;
+        }
+
+        public ModuleGraph build() {
+            return new ModuleGraph(modules);
+        }
+
+        private static class Module {
+            final String path;
+            final String directory;
+            final String parentPath;
+            final boolean hasRuntimeConfiguration;
+            final List<String> dependencyPaths = new ArrayList<>();
+
+            private Module(final String path, final String directory, final String parentPath, final boolean hasRuntimeConfiguration) {
+                this.path = path;
+                this.directory = directory;
+                this.parentPath = parentPath;
+                this.hasRuntimeConfiguration = hasRuntimeConfiguration;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.frankfarrell.blastradius;
+
+import java.util.Arrays;
+
+/**
+ * Prefix trie over the directories of the modules in a {@link ModuleGraph}.
+ *
+ * Routing a path walks the trie once, character by character, and reports every module whose prefix the path starts
+ * with, shortest prefix first. A module can be reached in two ways: through its project directory, which is what
+ * dependents match against, and through its gradle path, eg :a:b becomes /a/b, which is what the module itself is
+ * matched against. In a conventional layout both are the same.
+ */
+public class ModulePathTrie {
+
+    public interface Visitor {
+        /*
+        tailStart is the index in the path where the part relative to the module starts
+         */
+        void visit(int module, boolean isProjectDirectory, int tailStart);
+    }
+
+    private static final int[] NO_MODULES = new int[0];
+
+    private final Node root = new Node();
+
+    public ModulePathTrie(final ModuleGraph moduleGraph) {
+        for(int module = 0; module < moduleGraph.size(); module++){
+            final Node directoryNode = insert(moduleGraph.getModuleDirectory(module));
+            directoryNode.directoryModules = append(directoryNode.directoryModules, module);
+
+            final Node pathNode = insert(toPrefix(moduleGraph.getModulePath(module)));
+            pathNode.pathModules = append(pathNode.pathModules, module);
+        }
+    }
+
+    /*
+    Gradle paths use ":" as separator, the root project being ":" on its own
+     */
+    static String toPrefix(final String modulePath) {
+        final String prefix = modulePath.replace("\\", "/").replace(":", "/");
+        return prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+    }
+
+    public void route(final CharSequence path, final Visitor visitor) {
+        Node node = root;
+        int position = 0;
+        while(true){
+            for(final int module : node.directoryModules){
+                visitor.visit(module, true, position);
+            }
+            for(final int module : node.pathModules){
+                visitor.visit(module, false, position);
+            }
+            if(position == path.length()){
+                return;
+            }
+            node = node.child(path.charAt(position++));
+            if(node == null){
+                return;
+            }
+        }
+    }
+
+    private Node insert(final String prefix) {
+        Node node = root;
+        for(int i = 0; i < prefix.length(); i++){
+            node = node.getOrAddChild(prefix.charAt(i));
+        }
+        return node;
+    }
+
+    private static int[] append(final int[] modules, final int module) {
+        final int[] result = Arrays.copyOf(modules, modules.length + 1);
+        result[modules.length] = module;
+        return result;
+    }
+
+    private static class Node {
+
+        //Sorted, so children can be found with a binary search
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+
+        private int[] directoryModules = NO_MODULES;
+        private int[] pathModules = NO_MODULES;
+
+        private Node child(final char key) {
+            final int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private Node getOrAddChild(final char key) {
+            final int index = Arrays.binarySearch(keys, key);
+            if(index >= 0){
+                return children[index];
+            }
+            final int insertionPoint = -index - 1;
+            final Node child = new Node();
+
+            final char[] newKeys = new char[keys.length + 1];
+            final Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertionPoint);
+            System.arraycopy(children, 0, newChildren, 0, insertionPoint);
+            newKeys[insertionPoint] = key;
+            newChildren[insertionPoint] = child;
+            System.arraycopy(keys, insertionPoint, newKeys, insertionPoint + 1, keys.length - insertionPoint);
+            System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1, children.length - insertionPoint);
+
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
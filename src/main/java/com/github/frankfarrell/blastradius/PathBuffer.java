@@ -0,0 +1,108 @@
+package com.github.frankfarrell.blastradius;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable, mutable path that patterns can be matched against without creating a String for every path.
+ *
+ * Paths are held the way the patterns expect them, starting with "/" and with "/" as the only separator, so they are
+ * normalized once when they're set rather than every time they're matched. Git's raw UTF-8 paths can be set straight
+ * from a TreeWalk's buffer. Once the buffer has grown to the longest path, setting a path doesn't allocate.
+ *
+ * Not thread safe, each thread matching paths needs its own.
+ */
+public final class PathBuffer implements CharSequence {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private char[] chars = new char[INITIAL_CAPACITY];
+    private int length = 0;
+
+    //Only created for paths that aren't ASCII
+    private CharsetDecoder decoder;
+
+    /*
+    A path relative to the root of the repository, as the UTF-8 bytes a TreeWalk holds it in
+     */
+    public PathBuffer setRaw(final byte[] rawPath, final int rawLength) {
+        ensureCapacity(rawLength + 1);
+        chars[0] = '/';
+        for(int i = 0; i < rawLength; i++){
+            final byte b = rawPath[i];
+            if(b < 0){
+                return decode(rawPath, rawLength);
+            }
+            chars[i + 1] = b == '\\' ? '/' : (char) b;
+        }
+        length = rawLength + 1;
+        return this;
+    }
+
+    /*
+    A path that already starts with "/", eg one from a list of changed paths
+     */
+    public PathBuffer set(final CharSequence path) {
+        final int pathLength = path.length();
+        ensureCapacity(pathLength);
+        for(int i = 0; i < pathLength; i++){
+            final char c = path.charAt(i);
+            chars[i] = c == '\\' ? '/' : c;
+        }
+        length = pathLength;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if(index >= length){
+            throw new IndexOutOfBoundsException("Index " + index + " of a path of length " + length);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private PathBuffer decode(final byte[] rawPath, final int rawLength) {
+        if(decoder == null){
+            decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        //UTF-8 never decodes to more chars than it has bytes
+        final CharBuffer out = CharBuffer.wrap(chars, 1, rawLength);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(rawPath, 0, rawLength), out, true);
+        decoder.flush(out);
+        length = out.position();
+        for(int i = 1; i < length; i++){
+            if(chars[i] == '\\'){
+                chars[i] = '/';
+            }
+        }
+        return this;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if(chars.length < capacity){
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+        }
+    }
+}
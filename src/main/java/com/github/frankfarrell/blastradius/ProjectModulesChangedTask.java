@@ -2,16 +2,30 @@ package com.github.frankfarrell.blastradius;
 
 import com.github.frankfarrell.blastradius.DiffStrategy;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.gradle.api.Project;
+import org.gradle.api.file.Directory;
 import org.gradle.api.internal.ConventionTask;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -25,7 +39,14 @@ import static java.util.stream.Collectors.joining;
  * This file can be read and used by other processes as needed
  *
  * Ideally for use on the root project, but it ought to be able to be used anywhere
+ *
+ * The commits being compared, the patterns and the module graph are task inputs, so running it again on the same
+ * commits is up to date, and the file can be loaded from the build cache
+ *
+ * Settings are lazy properties, so they can be set from providers, eg of a -P property, and are only read when the
+ * task runs
  */
+@CacheableTask
 public class ProjectModulesChangedTask  extends ConventionTask {
 
     private static final Logger logger = Logging.getLogger(ProjectModulesChangedTask.class);
@@ -33,43 +54,118 @@ public class ProjectModulesChangedTask  extends ConventionTask {
     public static final String DEFAULT_FILE_LOCATION = "changedFiles";
     public static final Set<String> DEFAULT_FILE_PATTERNS =  Collections.unmodifiableSet(Stream.of("/[^.]*.gradle", "/src/main/.*").collect(Collectors.toSet()));
 
-    private DiffStrategy diffStrategy = DiffStrategy.JENKINS_LAST_COMMIT;
+    //Everything the action needs is captured when the task is configured, so it never goes back to the project
+    private final String modulePath;
+    private final File rootDirectory;
+    private final Directory projectDirectory;
+    private final Property<ModuleGraph> moduleGraph;
 
-    private Optional<String> fileLocation = Optional.empty();
-    private Optional<Set<String>> filePatterns = Optional.empty();
+    private final Property<String> diffStrategy;
+    private final Property<String> fileLocation;
+    private final Property<String> ledgerLocation;
+    private final SetProperty<String> filePatterns;
+    private final Property<String> previousCommit;
 
     private Map<String, List<String>> moduleFilePatterns = new HashMap<>();
-    private String previousCommit;
+    //For PREVIOUS_TAG, eg ":payments" -> "payments-" for a module that is tagged and released on its own
+    private Map<String, String> moduleTagPrefixes = new HashMap<>();
+
+    //Compare the git trees of the directories the patterns can match before looking at any changed files
+    private boolean useSubtreeFingerprints = false;
+
+    private final Property<Boolean> traceDecisions;
+
+    public ProjectModulesChangedTask() {
+        final Project project = getProject();
+        final ObjectFactory objects = project.getObjects();
+
+        this.modulePath = project.getPath();
+        this.rootDirectory = project.getRootDir();
+        this.projectDirectory = project.getLayout().getProjectDirectory();
+        //Set once every project has been configured, so the action never builds it from the project
+        this.moduleGraph = objects.property(ModuleGraph.class);
+        ModuleGraph.captureWhenTaskGraphIsReady(this, moduleGraph);
+        GitDiffService.closeWhenBuildFinishes(project);
+
+        this.diffStrategy = objects.property(String.class);
+        this.diffStrategy.set(DiffStrategy.JENKINS_LAST_COMMIT.name());
+
+        //Uncommitted changes aren't an input, so the result can't be reused
+        getOutputs().upToDateWhen(task -> getStrategy() != DiffStrategy.WORKING_TREE);
+        getOutputs().doNotCacheIf("The working tree is compared", task -> getStrategy() == DiffStrategy.WORKING_TREE);
+        this.fileLocation = objects.property(String.class);
+        this.fileLocation.set(DEFAULT_FILE_LOCATION);
+        this.ledgerLocation = objects.property(String.class);
+        this.ledgerLocation.set(DeployLedger.DEFAULT_LEDGER_LOCATION);
+        this.filePatterns = objects.setProperty(String.class);
+        this.filePatterns.set(DEFAULT_FILE_PATTERNS);
+        this.previousCommit = objects.property(String.class);
+        this.traceDecisions = objects.property(Boolean.class);
+        this.traceDecisions.set(false);
+    }
 
+    @Internal
     public String getFileLocation() {
-        return fileLocation.orElse(DEFAULT_FILE_LOCATION);
+        return fileLocation.get();
+    }
+
+    @OutputFile
+    public File getOutputFile() {
+        return projectDirectory.file(getFileLocation()).getAsFile();
+    }
+
+    //Timings and counters of the build up to this task, see Metrics
+    @Internal
+    public File getMetricsFile() {
+        return projectDirectory.file(getFileLocation() + Metrics.FILE_SUFFIX).getAsFile();
+    }
+
+    @Input
+    public String getDiffStrategy() {
+        return DiffStrategy.valueOf(diffStrategy.get()).name();
     }
 
     public void setDiffStrategy(final String diffStrategy) {
-        this.diffStrategy = DiffStrategy.valueOf(diffStrategy);
+        //Fail when configured if the value is known
+        this.diffStrategy.set(DiffStrategy.valueOf(diffStrategy).name());
+    }
+
+    public void setDiffStrategy(final Provider<String> diffStrategy) {
+        this.diffStrategy.set(diffStrategy);
     }
 
     public void setFileLocation(final String fileLocation) {
-        this.fileLocation = Optional.ofNullable(fileLocation);
+        this.fileLocation.set(fileLocation == null ? DEFAULT_FILE_LOCATION : fileLocation);
     }
 
+    @Input
     public Set<String> getFilePatterns() {
-        return filePatterns.orElse(DEFAULT_FILE_PATTERNS);
+        return filePatterns.get();
     }
 
+    @Input
+    @org.gradle.api.tasks.Optional
     public String getPreviousCommit() {
-        return previousCommit;
+        return previousCommit.getOrNull();
     }
 
     public void setPreviousCommit(String previousCommit) {
-        this.previousCommit = previousCommit;
+        this.previousCommit.set(previousCommit);
     }
 
+    public void setPreviousCommit(final Provider<String> previousCommit) {
+        this.previousCommit.set(previousCommit);
+    }
 
     public void setFilePatterns(final List<String> filePatterns) {
-        this.filePatterns = filePatterns == null? Optional.empty():Optional.of(new HashSet<>(filePatterns));
+        this.filePatterns.set(filePatterns == null ? DEFAULT_FILE_PATTERNS : new HashSet<>(filePatterns));
     }
 
+    public void setFilePatterns(final Provider<? extends Iterable<String>> filePatterns) {
+        this.filePatterns.set(filePatterns);
+    }
+
+    @Input
     public Map<String, Set<String>> getModuleFilePatterns() {
         return moduleFilePatterns.entrySet().stream()
                 .collect(Collectors.toMap(Map.Entry::getKey, entry -> new HashSet<>(entry.getValue())));
@@ -79,69 +175,211 @@ public class ProjectModulesChangedTask  extends ConventionTask {
         this.moduleFilePatterns = moduleFilePatterns;
     }
 
+    @Input
+    public Map<String, String> getModuleTagPrefixes() {
+        return moduleTagPrefixes;
+    }
+
+    public void setModuleTagPrefixes(final Map<String, String> moduleTagPrefixes) {
+        this.moduleTagPrefixes = moduleTagPrefixes;
+    }
+
+    @Input
+    public boolean getUseSubtreeFingerprints() {
+        return useSubtreeFingerprints;
+    }
+
+    public void setUseSubtreeFingerprints(final boolean useSubtreeFingerprints) {
+        this.useSubtreeFingerprints = useSubtreeFingerprints;
+    }
+
+    //Also write why each module has or hasn't changed, see DecisionTrace
+    @Input
+    public boolean getTraceDecisions() {
+        return traceDecisions.get();
+    }
+
+    public void setTraceDecisions(final boolean traceDecisions) {
+        this.traceDecisions.set(traceDecisions);
+    }
+
+    public void setTraceDecisions(final Provider<Boolean> traceDecisions) {
+        this.traceDecisions.set(traceDecisions);
+    }
+
+    @OutputFile
+    @org.gradle.api.tasks.Optional
+    public File getTraceFile() {
+        return getTraceDecisions() ? projectDirectory.file(getFileLocation() + DecisionTrace.FILE_SUFFIX).getAsFile() : null;
+    }
+
+    @Input
+    public String getCommitIds() throws IOException {
+        if(getStrategy() == DiffStrategy.LEDGER){
+            //The commits modules were last deployed from are in the ledger
+            return "ledger.." + Optional.ofNullable(getGitDiffService().getGitRepository().getHeadCommitId())
+                    .map(ObjectId::name)
+                    .orElse(GitDiffService.UNRESOLVED_COMMIT_IDS);
+        }
+        if(hasTagPrefixPerModule()){
+            return getGitDiffService().getCommitIdsDescriptionFromPreviousTags(
+                    GitDiffService.getTagPrefixes(moduleTagPrefixes, getModulePaths(ModuleGraph.captured(getPath(), moduleGraph))));
+        }
+        return getGitDiffService().getCommitIdsDescription(getStrategy(), Optional.ofNullable(getPreviousCommit()));
+    }
+
+    @Internal
+    public String getLedgerLocation() {
+        return ledgerLocation.get();
+    }
+
+    public void setLedgerLocation(final String ledgerLocation) {
+        this.ledgerLocation.set(ledgerLocation == null ? DeployLedger.DEFAULT_LEDGER_LOCATION : ledgerLocation);
+    }
+
+    @Internal
+    public File getLedger() {
+        return projectDirectory.file(getLedgerLocation()).getAsFile();
+    }
+
+    //Only an input for the LEDGER strategy, and only once something has been deployed
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    @org.gradle.api.tasks.Optional
+    public File getLedgerFile() {
+        return getStrategy() == DiffStrategy.LEDGER && getLedger().isFile() ? getLedger() : null;
+    }
+
+    //The build cache key leaves out the task path, and every other input can be the same in every module
+    @Input
+    public String getModulePath() {
+        return modulePath;
+    }
+
+    @Input
+    public String getModuleGraphFingerprint() {
+        return ModuleGraph.captured(getPath(), moduleGraph).getFingerprint();
+    }
+
+    private DiffStrategy getStrategy() {
+        return DiffStrategy.valueOf(diffStrategy.get());
+    }
+
+    private boolean hasTagPrefixPerModule() {
+        return getStrategy() == DiffStrategy.PREVIOUS_TAG && !moduleTagPrefixes.isEmpty();
+    }
+
+    //This module and those under it
+    private List<String> getModulePaths(final ModuleGraph moduleGraph) {
+        return moduleGraph.getModuleAndDescendants(moduleGraph.indexOf(modulePath)).stream()
+                .map(moduleGraph::getModulePath)
+                .collect(Collectors.toList());
+    }
+
+    private GitDiffService getGitDiffService() {
+        return GitDiffService.forRootDirectory(rootDirectory);
+    }
+
     @TaskAction
     public void writeListOfChangedModules() throws GitAPIException {
 
-        final File fileToWrite = new File(getFileLocation());
+        final File fileToWrite = getOutputFile();
 
         try(final FileWriter writer = new FileWriter(fileToWrite, false)){
 
-            final GitRepository gitRepository = new GitRepository();
-            final Optional<List<String>> pathsWithDiffOptional = gitRepository.getPathsThatHaveChanged(diffStrategy, Optional.ofNullable(previousCommit));
+            final ModuleGraph moduleGraph = ModuleGraph.captured(getPath(), this.moduleGraph);
+            final int startModule = moduleGraph.indexOf(modulePath);
+            final ModuleChangeEvaluator moduleChangeEvaluator = new ModuleChangeEvaluator(moduleGraph, getFilePatterns(), getModuleFilePatterns());
+
+            final GitDiffService gitDiffService = getGitDiffService();
+            final DiffStrategy diffStrategy = getStrategy();
+            final Optional<String> previousCommit = Optional.ofNullable(getPreviousCommit());
+
+            //Git only needs to look at directories that some module's patterns could match
+            SortedSet<String> pathPrefixes = moduleChangeEvaluator.getPathPrefixes(startModule);
+            //The subtrees are compared between one pair of commits, which modules with their own ledger entry or tags don't share
+            if(useSubtreeFingerprints && diffStrategy != DiffStrategy.LEDGER && !hasTagPrefixPerModule()){
+                //and of those only the ones whose tree is different
+                pathPrefixes = gitDiffService.getChangedSubtrees(diffStrategy, previousCommit, pathPrefixes)
+                        .orElse(pathPrefixes);
+            }
 
-            final Map<String, Boolean> changedModules = new HashMap<>();
+            final Map<String, Boolean> changedModules;
+            //Kept to explain the result if decisions are traced
+            final Function<String, Optional<List<String>>> pathsWithDiffOfModule;
 
-            //First ever deploy Write a list of all modules
-            if(!pathsWithDiffOptional.isPresent()){
-                addAllModulesChanged(getProject(), changedModules);
+            if(diffStrategy == DiffStrategy.LEDGER){
+                pathsWithDiffOfModule = getPathsWithDiffSinceLastDeploy(gitDiffService, moduleGraph, startModule, pathPrefixes);
+                //Modules that were never deployed, or whose commit can't be found, have changed
+                changedModules = moduleChangeEvaluator.getChangedModules(startModule, pathsWithDiffOfModule);
+            }
+            else if(hasTagPrefixPerModule()){
+                //Modules whose previous tags are on the same commits share one diff
+                pathsWithDiffOfModule = pathPrefixes.isEmpty()
+                        ? anyModulePath -> Optional.of(Collections.emptyList())
+                        : gitDiffService.getPathsThatHaveChangedSincePreviousTagOfModule(moduleTagPrefixes, getModulePaths(moduleGraph), pathPrefixes);
+                //Modules without a previous tag have changed
+                changedModules = moduleChangeEvaluator.getChangedModules(startModule, pathsWithDiffOfModule);
             }
-            else{
-                final List<String> pathsWithDiff = pathsWithDiffOptional.get();
-                checkIfModuleHasChanged(getProject(), changedModules, pathsWithDiff, getFilePatterns(), getModuleFilePatterns(), false);
+            else {
+                final Optional<List<String>> pathsWithDiffOptional = pathPrefixes.isEmpty()
+                        ? Optional.of(Collections.emptyList())
+                        : gitDiffService.getPathsThatHaveChanged(diffStrategy, previousCommit, pathPrefixes);
+                pathsWithDiffOfModule = anyModulePath -> pathsWithDiffOptional;
+
+                //First ever deploy Write a list of all modules
+                if(!pathsWithDiffOptional.isPresent()){
+                    changedModules = new HashMap<>();
+                    for(final int module : moduleGraph.getModuleAndDescendants(startModule)){
+                        changedModules.put(moduleGraph.getModulePath(module), true);
+                    }
+                }
+                else{
+                    changedModules = moduleChangeEvaluator.getChangedModules(startModule, pathsWithDiffOptional.get());
+                }
             }
 
             for(final Map.Entry<String, Boolean> entry:
                     changedModules.entrySet().stream()
                             .sorted(Comparator.comparing(Map.Entry::getKey)).collect(Collectors.toList())){
-                logger.debug("Project: {}, {}", entry.getKey(),  entry.getValue());
                 writer.write(entry.getKey() + "," + entry.getValue() + "\n");
             }
 
+            if(getTraceDecisions()){
+                moduleChangeEvaluator.explain(changedModules, pathsWithDiffOfModule).write(getTraceFile());
+            }
+
         }
         catch (IOException e){
             throw new RuntimeException("Couldn't open file for writing!"  + e.getMessage() +":" + Arrays.stream(e.getStackTrace()).map(StackTraceElement::toString).collect(joining("\n")));
         }
+        Metrics.writeReport(getMetricsFile());
     }
 
-    private void addAllModulesChanged(Project project, Map<String, Boolean> changedModules) {
-
-        changedModules.put(project.getPath(), true);
-        project.getSubprojects()
-                .forEach(subProject -> addAllModulesChanged(subProject, changedModules));
-    }
-
-    private void checkIfModuleHasChanged(final Project project,
-                                         final Map<String, Boolean> moduleMap,
-                                         final List<String> pathWithDiff,
-                                         final Set<String> defaultFilePatterns,
-                                         final Map<String, Set<String>> moduleFilePatterns,
-                                         final Boolean hasParentModuleChange){
-
-        final GradleModule gradleModule = new GradleModule(project);
+    /*
+    Each module is compared with the commit it was last deployed from, in one walk over all of those commits.
+    Modules that were never deployed, or whose commit can't be found, have no diff
+     */
+    private Function<String, Optional<List<String>>> getPathsWithDiffSinceLastDeploy(final GitDiffService gitDiffService,
+                                                                                     final ModuleGraph moduleGraph,
+                                                                                     final int startModule,
+                                                                                     final SortedSet<String> pathPrefixes) throws IOException {
 
-        final Boolean hasModuleChanged = hasParentModuleChange || gradleModule.hasChanged(moduleFilePatterns.getOrDefault(project.getPath(), defaultFilePatterns), pathWithDiff);
+        final DeployLedger deployLedger = DeployLedger.read(getLedger());
 
-        if(hasModuleChanged){
-            logger.info("Module {} has changed", project.getPath());
-            moduleMap.putIfAbsent(project.getPath() , true);
+        final Set<String> baseCommits = new HashSet<>();
+        for(final int module : moduleGraph.getModuleAndDescendants(startModule)){
+            deployLedger.getLastDeployedCommit(moduleGraph.getModulePath(module)).ifPresent(baseCommits::add);
         }
-        else {
-            logger.info("Module {} hasn't changed", project.getPath());
-            moduleMap.putIfAbsent(project.getPath(), false);
+
+        //No directory could change a module, so there's nothing to diff
+        if(pathPrefixes.isEmpty()){
+            return modulePath -> deployLedger.getLastDeployedCommit(modulePath).map(commit -> Collections.emptyList());
         }
 
-        project.getSubprojects()
-                .forEach(subProject -> checkIfModuleHasChanged(subProject, moduleMap, pathWithDiff, defaultFilePatterns, moduleFilePatterns, hasModuleChanged));
+        final Map<String, List<String>> pathsWithDiffByBaseCommit = gitDiffService.getPathsThatHaveChangedSince(baseCommits, pathPrefixes);
+
+        return modulePath -> deployLedger.getLastDeployedCommit(modulePath).map(pathsWithDiffByBaseCommit::get);
     }
 
 }
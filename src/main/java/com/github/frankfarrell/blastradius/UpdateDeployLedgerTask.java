@@ -0,0 +1,110 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.gradle.api.GradleException;
+import org.gradle.api.Project;
+import org.gradle.api.file.Directory;
+import org.gradle.api.internal.ConventionTask;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Records HEAD in the deploy ledger as the commit modules were last deployed from, for the LEDGER diff strategy.
+ *
+ * Run it after a successful deploy. By default every module under this project is recorded, set modules to record
+ * only the ones that were deployed. The ledger is replaced atomically, so a failed build never leaves it half written,
+ * and it's locked while it's updated, so deploys recorded at the same time are all kept.
+ *
+ * It records whatever HEAD is when it runs, so it's never up to date.
+ */
+public class UpdateDeployLedgerTask extends ConventionTask {
+
+    private static final Logger logger = Logging.getLogger(UpdateDeployLedgerTask.class);
+
+    private final File rootDirectory;
+    private final Directory projectDirectory;
+    //Set once every project has been configured, so the action never builds it from the project
+    private final Property<ModuleGraph> moduleGraph;
+    //Every module under this project
+    private final Provider<List<String>> allModules;
+
+    private final Property<String> ledgerLocation;
+    private final ListProperty<String> modules;
+
+    public UpdateDeployLedgerTask() {
+        final Project project = getProject();
+        final ObjectFactory objects = project.getObjects();
+        final String modulePath = project.getPath();
+
+        this.rootDirectory = project.getRootDir();
+        this.projectDirectory = project.getLayout().getProjectDirectory();
+        this.moduleGraph = objects.property(ModuleGraph.class);
+        ModuleGraph.captureWhenTaskGraphIsReady(this, moduleGraph);
+        this.allModules = moduleGraph.map(graph ->
+                graph.getModuleAndDescendants(graph.indexOf(modulePath)).stream()
+                        .map(graph::getModulePath)
+                        .collect(Collectors.toList()));
+        GitDiffService.closeWhenBuildFinishes(project);
+
+        this.ledgerLocation = objects.property(String.class);
+        this.ledgerLocation.set(DeployLedger.DEFAULT_LEDGER_LOCATION);
+        this.modules = objects.listProperty(String.class);
+        this.modules.set(allModules);
+
+        getOutputs().upToDateWhen(task -> false);
+    }
+
+    @Internal
+    public String getLedgerLocation() {
+        return ledgerLocation.get();
+    }
+
+    public void setLedgerLocation(final String ledgerLocation) {
+        this.ledgerLocation.set(ledgerLocation == null ? DeployLedger.DEFAULT_LEDGER_LOCATION : ledgerLocation);
+    }
+
+    @Internal
+    public List<String> getModules() {
+        return modules.get();
+    }
+
+    public void setModules(final List<String> modules) {
+        if(modules == null){
+            this.modules.set(allModules);
+        }
+        else {
+            this.modules.set(modules);
+        }
+    }
+
+    public void setModules(final Provider<? extends Iterable<String>> modules) {
+        this.modules.set(modules);
+    }
+
+    @TaskAction
+    public void updateDeployLedger() throws IOException {
+
+        final ObjectId head = GitDiffService.forRootDirectory(rootDirectory).getGitRepository().getHeadCommitId();
+        if(head == null){
+            throw new GradleException("Can't record a deploy in a repository without commits");
+        }
+
+        final File ledger = projectDirectory.file(getLedgerLocation()).getAsFile();
+        final List<String> deployedModules = getModules();
+
+        logger.info("Recording {} as deployed from {} in {}", deployedModules, head.name(), ledger);
+
+        DeployLedger.recordDeployed(ledger, deployedModules, head.name());
+    }
+}
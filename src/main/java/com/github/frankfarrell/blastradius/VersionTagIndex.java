@@ -0,0 +1,157 @@
+package com.github.frankfarrell.blastradius;
+
+import com.github.zafarkhaja.semver.Version;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * The tags of a repository that are semantic versions, parsed once.
+ *
+ * Versions are held in a sorted array so the previous version can be found with a binary search, and tags are
+ * indexed by the commit they point to so the tags on HEAD are a single lookup.
+ *
+ * Only tags starting with tagPrefix are considered, and the prefix is removed before parsing, eg with prefix
+ * "payments-" the tag payments-2.3.1 is version 2.3.1. The prefix is empty for plain version tags.
+ */
+public class VersionTagIndex {
+
+    private static final Logger logger = Logging.getLogger(VersionTagIndex.class);
+
+    //See https://semver.org, checked before parsing so that other tags don't cost an exception each
+    private static final Pattern SEMANTIC_VERSION = Pattern.compile(
+            "(0|[1-9]\\d*)\\.(0|[1-9]\\d*)\\.(0|[1-9]\\d*)" +
+            "(-[0-9A-Za-z-]+(\\.[0-9A-Za-z-]+)*)?" +
+            "(\\+[0-9A-Za-z-]+(\\.[0-9A-Za-z-]+)*)?");
+
+    private final String tagPrefix;
+
+    //Sorted, with the id of the tag for each version at the same index
+    private final Version[] versions;
+    private final ObjectId[] tagIds;
+
+    private final Map<ObjectId, Version> highestVersionByCommit;
+    private final Map<ObjectId, List<String>> tagNamesByCommit;
+
+    private VersionTagIndex(final String tagPrefix,
+                            final Version[] versions,
+                            final ObjectId[] tagIds,
+                            final Map<ObjectId, Version> highestVersionByCommit,
+                            final Map<ObjectId, List<String>> tagNamesByCommit) {
+        this.tagPrefix = tagPrefix;
+        this.versions = versions;
+        this.tagIds = tagIds;
+        this.highestVersionByCommit = highestVersionByCommit;
+        this.tagNamesByCommit = tagNamesByCommit;
+    }
+
+    /*
+    tags are tag names, without refs/tags/, to refs. commitIdOf peels a tag to the commit it points at, or null
+     */
+    public static VersionTagIndex build(final Map<String, Ref> tags, final String tagPrefix, final Function<Ref, ObjectId> commitIdOf) {
+
+        final List<Map.Entry<Version, ObjectId>> versionTags = new ArrayList<>();
+        final Map<ObjectId, Version> highestVersionByCommit = new HashMap<>();
+        final Map<ObjectId, List<String>> tagNamesByCommit = new HashMap<>();
+
+        for(final Map.Entry<String, Ref> tag : tags.entrySet()){
+            final ObjectId commitId = commitIdOf.apply(tag.getValue());
+            if(commitId != null){
+                tagNamesByCommit.computeIfAbsent(commitId, key -> new ArrayList<>()).add(tag.getKey());
+            }
+
+            final Optional<Version> version = parseVersion(tag.getKey(), tagPrefix);
+            if(version.isPresent()){
+                versionTags.add(new AbstractMap.SimpleImmutableEntry<>(version.get(), tag.getValue().getObjectId()));
+                if(commitId != null){
+                    highestVersionByCommit.merge(commitId, version.get(), (a, b) -> a.compareTo(b) >= 0 ? a : b);
+                }
+            }
+        }
+
+        versionTags.sort(Map.Entry.comparingByKey());
+
+        final Version[] versions = new Version[versionTags.size()];
+        final ObjectId[] tagIds = new ObjectId[versionTags.size()];
+        for(int i = 0; i < versions.length; i++){
+            versions[i] = versionTags.get(i).getKey();
+            tagIds[i] = versionTags.get(i).getValue();
+        }
+
+        logger.info("Found {} version tags out of {} tags", versions.length, tags.size());
+        return new VersionTagIndex(tagPrefix, versions, tagIds, highestVersionByCommit, tagNamesByCommit);
+    }
+
+    static Optional<Version> parseVersion(final String tagName, final String tagPrefix) {
+        if(!tagName.startsWith(tagPrefix)){
+            return Optional.empty();
+        }
+        final String versionString = tagName.substring(tagPrefix.length());
+        if(!SEMANTIC_VERSION.matcher(versionString).matches()){
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Version.valueOf(versionString));
+        } catch (RuntimeException e) {
+            //Only for versions the pattern lets through but the parser is stricter about
+            logger.debug("Failed to turn tag into version for {}", tagName);
+            return Optional.empty();
+        }
+    }
+
+    public String getTagPrefix() {
+        return tagPrefix;
+    }
+
+    public List<Version> getVersions() {
+        return Collections.unmodifiableList(Arrays.asList(versions));
+    }
+
+    public boolean isEmpty() {
+        return versions.length == 0;
+    }
+
+    public Optional<Version> getVersionOnCommit(final ObjectId commitId) {
+        return Optional.ofNullable(highestVersionByCommit.get(commitId));
+    }
+
+    public List<String> getTagNamesOnCommit(final ObjectId commitId) {
+        return tagNamesByCommit.getOrDefault(commitId, Collections.emptyList());
+    }
+
+    /*
+    Position of version in the sorted versions, or -1 if there is no tag for it
+     */
+    public int indexOf(final Version version) {
+        int low = 0;
+        int high = versions.length;
+        //First index whose version is not lower
+        while(low < high){
+            final int middle = (low + high) >>> 1;
+            if(versions[middle].compareTo(version) < 0){
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low < versions.length && versions[low].compareTo(version) == 0 ? low : -1;
+    }
+
+    public Version getVersion(final int index) {
+        return versions[index];
+    }
+
+    public ObjectId getTagId(final int index) {
+        return tagIds[index];
+    }
+
+    public int size() {
+        return versions.length;
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Keeps opened repositories, and the version tags read from them, between builds in the same Gradle daemon.
+ *
+ * Opening a repository means finding the git directory and reading its refs and pack indexes, and reading every
+ * version tag again is slow in repositories with a lot of them. JGit reloads refs that have changed by itself, so an
+ * opened repository can always be reused. The tag indexes built from the refs are thrown away when packed-refs or
+ * a directory of loose tags has been modified since they were built. They are only softly referenced, so they are dropped when
+ * memory runs low, and only the most recently used repositories are kept open.
+ */
+public final class WarmRepositoryCache {
+
+    private static final Logger logger = Logging.getLogger(WarmRepositoryCache.class);
+
+    static final int MAX_REPOSITORIES = 8;
+
+    //A file modified this close to when its time was read may be modified again without its time changing
+    static final long RACY_MILLIS = 2500;
+
+    private static final Map<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<File, Entry> eldest) {
+            if(size() > MAX_REPOSITORIES){
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private WarmRepositoryCache() {
+    }
+
+    /*
+    Looks for the git directory in directory and its parents, or reuses the repository found there before.
+    The caller has to close the repository, which only closes it once it has been evicted as well
+     */
+    public static synchronized Repository open(final File directory) throws IOException {
+        final File key = directory.getAbsoluteFile();
+
+        final Entry cached = entries.get(key);
+        if(cached != null && cached.repository.getDirectory().isDirectory()){
+            logger.debug("Reusing git repository {}", cached.repository.getDirectory());
+            Metrics.count(Metrics.Counter.WARM_CACHE_HITS, 1);
+            cached.repository.incrementOpen();
+            return cached.repository;
+        }
+        if(cached != null){
+            //Deleted since, eg the temporary folder of a test
+            entries.remove(key).close();
+        }
+
+        final FileRepositoryBuilder repositoryBuilder = new FileRepositoryBuilder();
+        repositoryBuilder.findGitDir(key);
+        if(repositoryBuilder.getGitDir() == null){
+            throw new InvalidUserDataException("No git repository found in " + directory + " or any of its parents");
+        }
+        final Entry entry = new Entry(repositoryBuilder.build());
+        entries.put(key, entry);
+
+        entry.repository.incrementOpen();
+        return entry.repository;
+    }
+
+    /*
+    The index of the version tags with a prefix, reused if no ref has changed since it was built.
+    Repositories that weren't opened here aren't cached, so their index is always built
+     */
+    public static VersionTagIndex getVersionTagIndex(final Repository repository, final String tagPrefix, final Supplier<VersionTagIndex> build) {
+        final Optional<Entry> entry = findEntry(repository);
+        return entry.isPresent() ? entry.get().getVersionTagIndex(tagPrefix, build) : build.get();
+    }
+
+    static synchronized void clear() {
+        entries.values().forEach(Entry::close);
+        entries.clear();
+    }
+
+    private static synchronized Optional<Entry> findEntry(final Repository repository) {
+        return entries.values().stream()
+                .filter(entry -> entry.repository == repository)
+                .findFirst();
+    }
+
+    private static final class Entry {
+
+        private final Repository repository;
+
+        private final Map<String, SoftReference<VersionTagIndex>> versionTagIndexes = new HashMap<>();
+        //The refs the indexes were built from
+        private RefsStamp refsStamp;
+
+        private Entry(final Repository repository) {
+            this.repository = repository;
+        }
+
+        private synchronized VersionTagIndex getVersionTagIndex(final String tagPrefix, final Supplier<VersionTagIndex> build) {
+            if(refsStamp == null || refsStamp.isRacy() || !refsStamp.isCurrent()){
+                versionTagIndexes.clear();
+                refsStamp = RefsStamp.of(repository.getDirectory());
+            }
+
+            final SoftReference<VersionTagIndex> cached = versionTagIndexes.get(tagPrefix);
+            final VersionTagIndex cachedIndex = cached == null ? null : cached.get();
+            if(cachedIndex != null){
+                logger.debug("Reusing index of {} version tags", cachedIndex.size());
+                Metrics.count(Metrics.Counter.WARM_CACHE_HITS, 1);
+                return cachedIndex;
+            }
+
+            final VersionTagIndex versionTagIndex = build.get();
+            versionTagIndexes.put(tagPrefix, new SoftReference<>(versionTagIndex));
+            return versionTagIndex;
+        }
+
+        //Releases the cache's own use of the repository
+        private void close() {
+            repository.close();
+        }
+    }
+
+    /*
+    The modification times of packed-refs and of refs/tags and the directories under it, which is all the tag indexes
+    are built from. Git writes a loose ref by renaming a lock file over it, so adding, moving or deleting a tag always
+    changes the time of its directory, and the tags themselves don't have to be looked at. Only the directories are
+    looked at again to check the stamp is current, a new one changes the time of its parent
+     */
+    static final class RefsStamp {
+
+        private final List<File> files;
+        private final long[] modifications;
+        private final long readAt;
+
+        private RefsStamp(final List<File> files, final long[] modifications, final long readAt) {
+            this.files = files;
+            this.modifications = modifications;
+            this.readAt = readAt;
+        }
+
+        static RefsStamp of(final File gitDirectory) {
+            final long readAt = System.currentTimeMillis();
+            final List<File> files = new ArrayList<>();
+            files.add(new File(gitDirectory, "packed-refs"));
+
+            final Deque<File> toVisit = new ArrayDeque<>(Collections.singleton(new File(new File(gitDirectory, "refs"), "tags")));
+            while(!toVisit.isEmpty()){
+                final File directory = toVisit.pop();
+                files.add(directory);
+                final File[] subdirectories = directory.listFiles(File::isDirectory);
+                if(subdirectories != null){
+                    toVisit.addAll(Arrays.asList(subdirectories));
+                }
+            }
+            return new RefsStamp(files, modificationsOf(files), readAt);
+        }
+
+        //0 for a file that doesn't exist
+        private static long[] modificationsOf(final List<File> files) {
+            final long[] modifications = new long[files.size()];
+            for(int i = 0; i < modifications.length; i++){
+                modifications[i] = files.get(i).lastModified();
+            }
+            return modifications;
+        }
+
+        List<File> getFiles() {
+            return files;
+        }
+
+        boolean isCurrent() {
+            return Arrays.equals(modifications, modificationsOf(files));
+        }
+
+        //Something may have changed since without changing the stamp, so it can't be trusted
+        boolean isRacy() {
+            long newestModification = 0;
+            for(final long modification : modifications){
+                newestModification = Math.max(newestModification, modification);
+            }
+            return readAt - newestModification < RACY_MILLIS;
+        }
+    }
+}
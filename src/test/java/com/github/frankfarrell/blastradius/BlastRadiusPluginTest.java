@@ -0,0 +1,43 @@
+package com.github.frankfarrell.blastradius;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlastRadiusPluginTest {
+
+    /*
+    :
+    ├── :a
+    ├── :b  -> :a
+    └── :c
+     */
+    final ModuleGraph moduleGraph = new ModuleGraph.Builder()
+            .addModule(":", "", null, false)
+            .addModule(":a", "/a", ":", true)
+            .addModule(":b", "/b", ":", true)
+            .addModule(":c", "/c", ":", true)
+            .addDependency(":b", ":a")
+            .build();
+
+    @Test
+    public void itStillBuildsWhatChangedModulesDependOn(){
+        final BitSet changed = new BitSet();
+        changed.set(moduleGraph.indexOf(":b"));
+
+        assertThat(paths(BlastRadiusPlugin.getUnaffectedModules(moduleGraph, changed))).containsExactly(":", ":c");
+    }
+
+    @Test
+    public void itSkipsEveryModuleWhenNothingChanged(){
+        assertThat(paths(BlastRadiusPlugin.getUnaffectedModules(moduleGraph, new BitSet()))).containsExactly(":", ":a", ":b", ":c");
+    }
+
+    private List<String> paths(final BitSet modules){
+        return modules.stream().mapToObj(moduleGraph::getModulePath).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.frankfarrell.blastradius;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChangeMatrixTaskTest {
+
+    @Test
+    public void itEncodesTheChangedModulesOfACommitAsFixedWidthHex(){
+        final BitSet columns = new BitSet();
+        columns.set(0);
+        columns.set(9);
+
+        assertThat(ChangeMatrixTask.toHex(columns, 2)).isEqualTo("0102");
+        assertThat(ChangeMatrixTask.toHex(new BitSet(), 2)).isEqualTo("0000");
+        assertThat(BitSet.valueOf(new byte[]{0x01, 0x02})).isEqualTo(columns);
+    }
+}
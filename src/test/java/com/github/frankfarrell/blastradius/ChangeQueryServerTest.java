@@ -0,0 +1,170 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs against a real repository created in a temporary folder
+ */
+public class ChangeQueryServerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    final ModuleGraph moduleGraph = new ModuleGraph.Builder()
+            .addModule(":", "", null, false)
+            .addModule(":a", "/a", ":", true)
+            .addModule(":b", "/b", ":", true)
+            .addModule(":c", "/c", ":", true)
+            .addDependency(":b", ":a")
+            .build();
+
+    Git git;
+
+    RevCommit firstCommit;
+    RevCommit secondCommit;
+
+    ChangeQueryServer changeQueryServerUnderTest;
+
+    @Before
+    public void setup() throws Exception {
+        git = Git.init().setDirectory(temporaryFolder.getRoot()).call();
+
+        writeFile("settings.gradle", "include 'a', 'b', 'c'");
+        writeFile("a/src/main/A.java", "class A {}");
+        writeFile("b/src/main/B.java", "class B {}");
+        writeFile("c/src/main/C.java", "class C {}");
+        firstCommit = commitAll("First");
+
+        writeFile("a/src/main/A.java", "class A { int a; }");
+        secondCommit = commitAll("Second");
+
+        //Without the diff cache on disk, so every diff is counted
+        changeQueryServerUnderTest = new ChangeQueryServer(
+                new GitRepository(git.getRepository()),
+                moduleGraph,
+                new ModuleChangeEvaluator(moduleGraph, new HashSet<>(Arrays.asList("/src/main/.*"))),
+                0,
+                ChangeQueryServer.DEFAULT_CACHE_SIZE,
+                Collections.singletonList(new File(temporaryFolder.getRoot(), "settings.gradle")));
+    }
+
+    @After
+    public void tearDown(){
+        changeQueryServerUnderTest.close();
+        git.close();
+        Metrics.reset();
+    }
+
+    @Test
+    public void itFindsTheModulesChangedBetweenTwoCommits() throws Exception {
+        assertThat(changeQueryServerUnderTest.getChangedModules(firstCommit.name(), secondCommit.name()).toString())
+                .isEqualTo("{1, 2}");
+        assertThat(changeQueryServerUnderTest.getChangedModules(secondCommit.name(), "HEAD").isEmpty()).isTrue();
+    }
+
+    @Test
+    public void itDiffsEachPairOfTreesOnce() throws Exception {
+        Metrics.reset();
+        changeQueryServerUnderTest.getChangedModules(firstCommit.name(), secondCommit.name());
+        final long pathsDiffed = Metrics.getCount(Metrics.Counter.PATHS_DIFFED);
+
+        //A commit with the same tree as the second one
+        git.commit().setMessage("Empty").call();
+        assertThat(changeQueryServerUnderTest.getChangedModules(firstCommit.name(), "HEAD").toString()).isEqualTo("{1, 2}");
+
+        assertThat(pathsDiffed).isEqualTo(1);
+        assertThat(Metrics.getCount(Metrics.Counter.PATHS_DIFFED)).isEqualTo(pathsDiffed);
+    }
+
+    @Test
+    public void itAnswersOverHttp() throws Exception {
+        final int port = changeQueryServerUnderTest.start(0, 2);
+
+        final HttpURLConnection connection = get(port, "/changed?base=" + firstCommit.name() + "&module=%3Ab");
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        assertThat(read(connection.getInputStream()))
+                .contains("\"base\": \"" + firstCommit.name() + "\"")
+                .contains("\"head\": \"" + secondCommit.name() + "\"")
+                .contains("\":b\": true")
+                .doesNotContain("\":a\"");
+    }
+
+    @Test
+    public void itRejectsUnknownCommitsAndModules() throws Exception {
+        final int port = changeQueryServerUnderTest.start(0, 2);
+
+        final HttpURLConnection unknownCommit = get(port, "/changed?base=doesNotExist");
+        assertThat(unknownCommit.getResponseCode()).isEqualTo(400);
+        assertThat(read(unknownCommit.getErrorStream())).contains("Can't find commit doesNotExist");
+
+        assertThat(get(port, "/changed?base=HEAD&module=%3Ad").getResponseCode()).isEqualTo(400);
+        assertThat(get(port, "/changed").getResponseCode()).isEqualTo(400);
+    }
+
+    @Test
+    public void itStopsWhenAskedTo() throws Exception {
+        final int port = changeQueryServerUnderTest.start(0, 2);
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + ChangeQueryServer.STOP_PATH).openConnection();
+        connection.setRequestMethod("POST");
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+
+        assertThat(changeQueryServerUnderTest.awaitStop()).isEqualTo("it was asked to");
+    }
+
+    @Test
+    public void itStopsWhenAWatchedFileChanges() throws Exception {
+        changeQueryServerUnderTest.start(0, 2);
+
+        writeFile("settings.gradle", "include 'a', 'b', 'c', 'd'");
+
+        assertThat(changeQueryServerUnderTest.awaitStop()).startsWith("settings.gradle has changed");
+    }
+
+    private static HttpURLConnection get(final int port, final String pathAndQuery) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + port + pathAndQuery).openConnection();
+    }
+
+    private static String read(final InputStream inputStream) throws IOException {
+        try (InputStream in = inputStream) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) >= 0){
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void writeFile(final String path, final String content) throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private RevCommit commitAll(final String message) throws Exception {
+        git.add().addFilepattern(".").call();
+        return git.commit().setMessage(message).call();
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.InvalidUserDataException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DeployLedgerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void itIsEmptyBeforeTheFirstDeploy() throws Exception {
+        final DeployLedger deployLedgerUnderTest = DeployLedger.read(new File(temporaryFolder.getRoot(), "deployLedger"));
+
+        assertThat(deployLedgerUnderTest.getLastDeployedCommits()).isEmpty();
+        assertThat(deployLedgerUnderTest.getLastDeployedCommit(":a")).isEmpty();
+    }
+
+    @Test
+    public void itRecordsDeploysWithoutForgettingOtherModules() throws Exception {
+        final File ledger = new File(temporaryFolder.getRoot(), "ledger/deployLedger");
+
+        DeployLedger.read(ledger).withDeployed(Arrays.asList(":a", ":b"), "1111").write(ledger);
+        DeployLedger.read(ledger).withDeployed(Arrays.asList(":b"), "2222").write(ledger);
+
+        assertThat(new String(Files.readAllBytes(ledger.toPath()), StandardCharsets.UTF_8))
+                .isEqualTo(":a,1111\n:b,2222\n");
+        assertThat(DeployLedger.read(ledger).getLastDeployedCommit(":b")).contains("2222");
+        assertThat(ledger.getParentFile().list()).containsExactly("deployLedger");
+    }
+
+    @Test
+    public void itKeepsEveryDeployRecordedAtTheSameTime() throws Exception {
+        final File ledger = new File(temporaryFolder.getRoot(), "deployLedger");
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> recorded = new ArrayList<>();
+            for(int i = 0; i < 16; i++){
+                final String modulePath = ":module" + i;
+                recorded.add(executorService.submit(() -> {
+                    DeployLedger.recordDeployed(ledger, Collections.singletonList(modulePath), "1111");
+                    return null;
+                }));
+            }
+            for(final Future<?> future : recorded){
+                future.get();
+            }
+        }
+        finally {
+            executorService.shutdown();
+        }
+
+        assertThat(DeployLedger.read(ledger).getLastDeployedCommits()).hasSize(16);
+    }
+
+    @Test
+    public void itRejectsInvalidLines() throws Exception {
+        final File ledger = temporaryFolder.newFile("deployLedger");
+        Files.write(ledger.toPath(), ":a,1111,extra\n".getBytes(StandardCharsets.UTF_8));
+
+        assertThatThrownBy(() -> DeployLedger.read(ledger)).isInstanceOf(InvalidUserDataException.class);
+    }
+}
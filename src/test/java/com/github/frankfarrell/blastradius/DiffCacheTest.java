@@ -0,0 +1,73 @@
+package com.github.frankfarrell.blastradius;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiffCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    File cacheDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        cacheDirectory = temporaryFolder.newFolder("diff-cache");
+    }
+
+    @Test
+    public void itReadsBackWhatWasWritten(){
+        final DiffCache diffCacheUnderTest = new DiffCache(cacheDirectory);
+        final List<String> paths = Arrays.asList("/src/main/A.java", "/docs/über.md", "/build.gradle");
+
+        diffCacheUnderTest.put("a-b", paths);
+
+        assertThat(diffCacheUnderTest.get("a-b")).contains(paths);
+        assertThat(diffCacheUnderTest.get("b-a")).isEmpty();
+    }
+
+    @Test
+    public void itHandlesEmptyDiffs(){
+        final DiffCache diffCacheUnderTest = new DiffCache(cacheDirectory);
+
+        diffCacheUnderTest.put("a-b", Collections.emptyList());
+
+        assertThat(diffCacheUnderTest.get("a-b")).contains(Collections.emptyList());
+    }
+
+    @Test
+    public void itEvictsTheLeastRecentlyUsedEntries() {
+        final List<String> paths = Collections.nCopies(100, "/src/main/SomeClass.java");
+        final DiffCache diffCacheUnderTest = new DiffCache(cacheDirectory, 6000);
+
+        diffCacheUnderTest.put("first", paths);
+        diffCacheUnderTest.put("second", paths);
+        new File(cacheDirectory, "first.paths").setLastModified(System.currentTimeMillis() - 60_000);
+        new File(cacheDirectory, "second.paths").setLastModified(System.currentTimeMillis() - 120_000);
+        diffCacheUnderTest.get("second");
+
+        diffCacheUnderTest.put("third", paths);
+
+        assertThat(diffCacheUnderTest.get("first")).isEmpty();
+        assertThat(diffCacheUnderTest.get("second")).isPresent();
+        assertThat(diffCacheUnderTest.get("third")).isPresent();
+    }
+
+    @Test
+    public void itIgnoresCorruptEntries() throws IOException {
+        Files.write(new File(cacheDirectory, "a-b.paths").toPath(), new byte[]{1, 2, 3});
+
+        assertThat(new DiffCache(cacheDirectory).get("a-b")).isEmpty();
+    }
+}
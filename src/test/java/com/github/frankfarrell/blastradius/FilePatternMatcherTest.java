@@ -0,0 +1,73 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.InvalidUserDataException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FilePatternMatcherTest {
+
+    @Test
+    public void itMatchesAnyOfTheRegularExpressions(){
+        final FilePatternMatcher matcher = FilePatternMatcher.forPatterns(ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS);
+
+        assertThat(matcher.matches("/build.gradle")).isTrue();
+        assertThat(matcher.matches("/src/main/java/A.java")).isTrue();
+        assertThat(matcher.matches("/src/test/java/ATest.java")).isFalse();
+        assertThat(matcher.matches("/README.md")).isFalse();
+    }
+
+    @Test
+    public void itMatchesFromAnOffset(){
+        final FilePatternMatcher matcher = FilePatternMatcher.forPatterns(new HashSet<>(Arrays.asList("/src/main/.*")));
+
+        assertThat(matcher.matches("/moduleA/src/main/A.java", "/moduleA".length())).isTrue();
+        assertThat(matcher.matches("/moduleA/src/main/A.java", 0)).isFalse();
+    }
+
+    @Test
+    public void itTranslatesGlobs(){
+        assertThat(FilePatternMatcher.globToRegex("/src/main/**")).isEqualTo("/src/main/.*");
+        assertThat(FilePatternMatcher.globToRegex("/**/*.tf")).isEqualTo("/(?:.*/)?[^/]*\\.tf");
+        assertThat(FilePatternMatcher.globToRegex("/*.{tf,tfvars}")).isEqualTo("/[^/]*\\.(?:tf|tfvars)");
+    }
+
+    @Test
+    public void itMatchesGlobsAndRegularExpressionsTogether(){
+        final FilePatternMatcher matcher = FilePatternMatcher.forPatterns(new HashSet<>(Arrays.asList("glob:**/*.tf", "glob:/helm/?alues.yaml", "regex:/deploy/.*")));
+
+        assertThat(matcher.matches("/main.tf")).isTrue();
+        assertThat(matcher.matches("/env/prod/main.tf")).isTrue();
+        assertThat(matcher.matches("/main.tfvars")).isFalse();
+        assertThat(matcher.matches("/helm/values.yaml")).isTrue();
+        assertThat(matcher.matches("/helm/templates/values.yaml")).isFalse();
+        assertThat(matcher.matches("/deploy/run.sh")).isTrue();
+    }
+
+    @Test
+    public void itSharesMatchersForTheSamePatterns(){
+        assertThat(FilePatternMatcher.forPatterns(new HashSet<>(ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS)))
+                .isSameAs(FilePatternMatcher.forPatterns(ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS));
+    }
+
+    @Test
+    public void itRejectsInvalidPatterns(){
+        assertThatThrownBy(() -> FilePatternMatcher.forPatterns(new HashSet<>(Arrays.asList("/src/main/(.*"))))
+                .isInstanceOf(InvalidUserDataException.class)
+                .hasMessageContaining("/src/main/(.*");
+    }
+
+    @Test
+    public void itFindsTheLiteralDirectoryPatternsStartWith(){
+        assertThat(FilePatternMatcher.literalDirectoryPrefix("/src/main/.*")).isEqualTo("/src/main");
+        assertThat(FilePatternMatcher.literalDirectoryPrefix("/helm/templates/[^/]*\\.yaml")).isEqualTo("/helm/templates");
+        assertThat(FilePatternMatcher.literalDirectoryPrefix("/deploys?/.*")).isEqualTo("");
+        assertThat(FilePatternMatcher.literalDirectoryPrefix("/docs/api.v1/.*")).isEqualTo("/docs");
+        assertThat(FilePatternMatcher.literalDirectoryPrefix("/[^.]*.gradle")).isEqualTo("");
+        assertThat(FilePatternMatcher.literalDirectoryPrefix("/src/main/.*|/deploy/.*")).isEqualTo("");
+    }
+}
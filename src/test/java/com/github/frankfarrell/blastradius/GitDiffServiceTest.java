@@ -0,0 +1,154 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GitDiffServiceTest {
+
+    @Mock
+    GitRepository mockGitRepository;
+
+    GitDiffService gitDiffServiceUnderTest;
+
+    final GitRepository.CommitIds commitIds = new GitRepository.CommitIds(
+            ObjectId.fromString("83baae61804e65cc73a7201a7252750c76066a30"),
+            ObjectId.fromString("83baae61804e65cc73a7201a7252750c76066a31"));
+
+    @Before
+    public void setup() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        gitDiffServiceUnderTest = new GitDiffService(new File("."), mockGitRepository);
+
+        when(mockGitRepository.getCommitIds(any(DiffStrategy.class), any())).thenReturn(Optional.of(commitIds));
+        when(mockGitRepository.getPathsThatHaveChanged(eq(Optional.of(commitIds)), eq(GitRepository.WHOLE_REPOSITORY))).thenAnswer(invocation -> {
+            Thread.sleep(50);
+            return Optional.of(new ArrayList<>(Collections.singletonList("/src/main/A.java")));
+        });
+    }
+
+    @Test
+    public void itOnlyDiffsOncePerPairOfCommits() throws Exception {
+        final ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Optional<List<String>>>> results = new ArrayList<>();
+            for(int i = 0; i < 16; i++){
+                final DiffStrategy diffStrategy = i % 2 == 0 ? DiffStrategy.PREVIOUS_COMMIT : DiffStrategy.PREVIOUS_TAG;
+                results.add(executorService.submit(() -> gitDiffServiceUnderTest.getPathsThatHaveChanged(diffStrategy, Optional.empty())));
+            }
+            for(final Future<Optional<List<String>>> result : results){
+                assertThat(result.get()).contains(Collections.singletonList("/src/main/A.java"));
+            }
+        }
+        finally {
+            executorService.shutdown();
+        }
+
+        verify(mockGitRepository, times(1)).getPathsThatHaveChanged(Optional.of(commitIds), GitRepository.WHOLE_REPOSITORY);
+        verify(mockGitRepository, times(1)).getCommitIds(DiffStrategy.PREVIOUS_COMMIT, Optional.empty());
+    }
+
+    @Test
+    public void itWaitsForThePrefetchedDiffRatherThanDiffingAgain() throws Exception {
+        final CountDownLatch diffStarted = new CountDownLatch(1);
+        when(mockGitRepository.getPathsThatHaveChanged(Optional.of(commitIds), GitRepository.WHOLE_REPOSITORY)).thenAnswer(invocation -> {
+            diffStarted.countDown();
+            Thread.sleep(50);
+            return Optional.of(Arrays.asList("/src/main/A.java", "/b/src/main/B.java", "/bb/src/main/B.java"));
+        });
+
+        gitDiffServiceUnderTest.prefetch(DiffStrategy.PREVIOUS_COMMIT, Optional.empty());
+        diffStarted.await();
+
+        assertThat(gitDiffServiceUnderTest.getPathsThatHaveChanged(DiffStrategy.PREVIOUS_COMMIT, Optional.empty(), new TreeSet<>(Collections.singleton("b"))))
+                .contains(Collections.singletonList("/b/src/main/B.java"));
+
+        verify(mockGitRepository, times(1)).getPathsThatHaveChanged(eq(Optional.of(commitIds)), any());
+    }
+
+    @Test
+    public void itSharesOneDiffBetweenTagPrefixesOnTheSameCommits() throws IOException {
+        when(mockGitRepository.getCommitIdsFromPreviousTag(any())).thenReturn(Optional.of(commitIds));
+        when(mockGitRepository.getCommitIdsFromPreviousTag("billing-")).thenReturn(Optional.empty());
+        when(mockGitRepository.peel(commitIds)).thenReturn(commitIds);
+
+        final Map<String, String> moduleTagPrefixes = new HashMap<>();
+        moduleTagPrefixes.put(":payments", "payments-");
+        moduleTagPrefixes.put(":orders", "orders-");
+        moduleTagPrefixes.put(":billing", "billing-");
+
+        final Function<String, Optional<List<String>>> pathsWithDiffOfModule = gitDiffServiceUnderTest.getPathsThatHaveChangedSincePreviousTagOfModule(
+                moduleTagPrefixes, Arrays.asList(":", ":payments", ":orders", ":billing"), GitRepository.WHOLE_REPOSITORY);
+
+        assertThat(pathsWithDiffOfModule.apply(":payments").get())
+                .isSameAs(pathsWithDiffOfModule.apply(":orders").get())
+                .isSameAs(pathsWithDiffOfModule.apply(":").get());
+        assertThat(pathsWithDiffOfModule.apply(":billing")).isEmpty();
+
+        verify(mockGitRepository, times(1)).getPathsThatHaveChanged(Optional.of(commitIds), GitRepository.WHOLE_REPOSITORY);
+        //Modules without a prefix use the plain version tags
+        verify(mockGitRepository, times(1)).getCommitIds(DiffStrategy.PREVIOUS_TAG, Optional.empty());
+    }
+
+    @Test
+    public void itOnlyKeepsPathsUnderThePrefixes() {
+        assertThat(GitDiffService.underPrefixes(Arrays.asList("/a/src/main/A.java", "/ab/B.java", "/a", "/docs/index.md"), new TreeSet<>(Arrays.asList("a", "c"))))
+                .containsExactly("/a/src/main/A.java", "/a");
+        assertThat(GitDiffService.underPrefixes(Arrays.asList("/ab/B.java"), GitRepository.WHOLE_REPOSITORY))
+                .containsExactly("/ab/B.java");
+    }
+
+    @Test
+    public void itReturnsAnImmutableList() throws IOException {
+        final List<String> paths = gitDiffServiceUnderTest.getPathsThatHaveChanged(DiffStrategy.PREVIOUS_COMMIT, Optional.empty()).get();
+
+        assertThatThrownBy(() -> paths.add("/other")).isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    public void itDescribesTheCommitsBeingCompared() throws IOException {
+        final GitRepository.CommitIds otherHead = new GitRepository.CommitIds(
+                commitIds.getPreviousCommit(), ObjectId.fromString("83baae61804e65cc73a7201a7252750c76066a32"));
+        final GitRepository.CommitIds otherBase = new GitRepository.CommitIds(
+                ObjectId.fromString("83baae61804e65cc73a7201a7252750c76066a33"), commitIds.getCurrentCommit());
+        when(mockGitRepository.getCommitIds(DiffStrategy.SPECIFIC_COMMIT, Optional.of("head"))).thenReturn(Optional.of(otherHead));
+        when(mockGitRepository.getCommitIds(DiffStrategy.SPECIFIC_COMMIT, Optional.of("base"))).thenReturn(Optional.of(otherBase));
+
+        final String description = gitDiffServiceUnderTest.getCommitIdsDescription(DiffStrategy.PREVIOUS_COMMIT, Optional.empty());
+
+        assertThat(description).isEqualTo(commitIds.getPreviousCommit().name() + ".." + commitIds.getCurrentCommit().name());
+        assertThat(gitDiffServiceUnderTest.getCommitIdsDescription(DiffStrategy.SPECIFIC_COMMIT, Optional.of("head"))).isNotEqualTo(description);
+        assertThat(gitDiffServiceUnderTest.getCommitIdsDescription(DiffStrategy.SPECIFIC_COMMIT, Optional.of("base"))).isNotEqualTo(description);
+    }
+
+    @Test
+    public void itDescribesCommitsThatCannotBeResolved() throws IOException {
+        when(mockGitRepository.getCommitIds(DiffStrategy.JENKINS_LAST_COMMIT, Optional.empty())).thenReturn(Optional.empty());
+
+        assertThat(gitDiffServiceUnderTest.getCommitIdsDescription(DiffStrategy.JENKINS_LAST_COMMIT, Optional.empty()))
+                .isEqualTo(GitDiffService.UNRESOLVED_COMMIT_IDS);
+    }
+
+    @Test
+    public void itReturnsEmptyWhenCommitsCannotBeResolved() throws IOException {
+        when(mockGitRepository.getCommitIds(DiffStrategy.JENKINS_LAST_COMMIT, Optional.empty())).thenReturn(Optional.empty());
+
+        assertThat(gitDiffServiceUnderTest.getPathsThatHaveChanged(DiffStrategy.JENKINS_LAST_COMMIT, Optional.empty())).isEmpty();
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs against a real repository created in a temporary folder
+ */
+public class GitRepositoryIntegrationTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    Git git;
+
+    GitRepository gitRepositoryUnderTest;
+
+    RevCommit firstCommit;
+    RevCommit secondCommit;
+
+    @Before
+    public void setup() throws Exception {
+        git = Git.init().setDirectory(temporaryFolder.getRoot()).call();
+
+        writeFile("build.gradle", "");
+        writeFile("moduleA/src/main/A.java", "class A {}");
+        writeFile("moduleA/src/test/ATest.java", "class ATest {}");
+        writeFile("docs/index.md", "# Docs");
+        firstCommit = commitAll("First");
+
+        writeFile("moduleA/src/main/A.java", "class A { int a; }");
+        writeFile("moduleA/src/test/ATest.java", "class ATest { int a; }");
+        writeFile("docs/index.md", "# More docs");
+        secondCommit = commitAll("Second");
+
+        gitRepositoryUnderTest = new GitRepository(temporaryFolder.getRoot());
+    }
+
+    @After
+    public void tearDown(){
+        gitRepositoryUnderTest.close();
+        git.close();
+    }
+
+    @Test
+    public void itListsEveryChangedPath() throws Exception {
+        assertThat(gitRepositoryUnderTest.getPathsThatHaveChanged(DiffStrategy.PREVIOUS_COMMIT).get())
+                .containsExactlyInAnyOrder("/moduleA/src/main/A.java", "/moduleA/src/test/ATest.java", "/docs/index.md");
+    }
+
+    @Test
+    public void itResolvesThePreviousTagOfEachPrefixIndependently() throws Exception {
+        git.tag().setObjectId(firstCommit).setName("1.0.0").call();
+        git.tag().setObjectId(secondCommit).setName("payments-1.0.0").call();
+        git.tag().setObjectId(secondCommit).setName("orders-1.0.0").call();
+
+        writeFile("docs/index.md", "# Even more docs");
+        commitAll("Third");
+        git.tag().setName("payments-1.1.0").call();
+        git.tag().setName("orders-1.1.0").call();
+        git.tag().setName("1.1.0").call();
+
+        assertThat(gitRepositoryUnderTest.getPathsThatHaveChanged(gitRepositoryUnderTest.getCommitIdsFromPreviousTag("payments-"), GitRepository.WHOLE_REPOSITORY).get())
+                .containsExactly("/docs/index.md");
+        assertThat(gitRepositoryUnderTest.getPathsThatHaveChanged(gitRepositoryUnderTest.getCommitIdsFromPreviousTag(""), GitRepository.WHOLE_REPOSITORY).get())
+                .containsExactlyInAnyOrder("/moduleA/src/main/A.java", "/moduleA/src/test/ATest.java", "/docs/index.md");
+        assertThat(gitRepositoryUnderTest.getCommitIdsFromPreviousTag("billing-")).isEmpty();
+        //Different tags on the same commits
+        assertThat(gitRepositoryUnderTest.peel(gitRepositoryUnderTest.getCommitIdsFromPreviousTag("orders-").get()))
+                .isEqualTo(gitRepositoryUnderTest.peel(gitRepositoryUnderTest.getCommitIdsFromPreviousTag("payments-").get()));
+    }
+
+    @Test
+    public void itOnlyListsPathsUnderThePrefixes() throws Exception {
+        final Optional<GitRepository.CommitIds> commitIds = gitRepositoryUnderTest.getCommitIds(DiffStrategy.PREVIOUS_COMMIT, Optional.empty());
+
+        assertThat(gitRepositoryUnderTest.getPathsThatHaveChanged(commitIds, new TreeSet<>(Arrays.asList("moduleA/src/main", "deploy"))).get())
+                .containsExactly("/moduleA/src/main/A.java");
+    }
+
+    @Test
+    public void itStopsAtTheFirstMatchingPath() throws Exception {
+        final Optional<GitRepository.CommitIds> commitIds = gitRepositoryUnderTest.getCommitIds(DiffStrategy.PREVIOUS_COMMIT, Optional.empty());
+        final List<String> testedPaths = new ArrayList<>();
+
+        assertThat(gitRepositoryUnderTest.anyPathHasChanged(commitIds, GitRepository.WHOLE_REPOSITORY, path -> {
+            //The path is a reused buffer, so it has to be copied to be kept
+            testedPaths.add(path.toString());
+            return path.toString().startsWith("/docs/");
+        })).contains(true);
+        assertThat(testedPaths).containsExactly("/docs/index.md");
+
+        assertThat(gitRepositoryUnderTest.anyPathHasChanged(commitIds, new TreeSet<>(Arrays.asList("moduleA/src/test")),
+                path -> path.toString().endsWith("A.java"))).contains(false);
+    }
+
+    @Test
+    public void itComparesTheTreesOfDirectories() throws Exception {
+        final Optional<GitRepository.CommitIds> commitIds = gitRepositoryUnderTest.getCommitIds(DiffStrategy.PREVIOUS_COMMIT, Optional.empty());
+
+        assertThat(gitRepositoryUnderTest.getChangedSubtrees(commitIds,
+                new TreeSet<>(Arrays.asList("", "build.gradle", "docs", "moduleA/src/main", "moduleB/src/main"))).get())
+                .containsExactly("", "docs", "moduleA/src/main");
+    }
+
+    @Test
+    public void itDiffsEveryBaseCommitInOneWalk() throws Exception {
+        writeFile("moduleA/src/main/A.java", "class A { int b; }");
+        final RevCommit thirdCommit = commitAll("Third");
+
+        final Map<String, List<String>> pathsWithDiff = gitRepositoryUnderTest.getPathsThatHaveChangedSince(
+                new HashSet<>(Arrays.asList(firstCommit.name(), secondCommit.name(), thirdCommit.name(), "notacommit")),
+                GitRepository.WHOLE_REPOSITORY);
+
+        assertThat(pathsWithDiff).containsOnlyKeys(firstCommit.name(), secondCommit.name(), thirdCommit.name());
+        assertThat(pathsWithDiff.get(firstCommit.name()))
+                .containsExactlyInAnyOrder("/moduleA/src/main/A.java", "/moduleA/src/test/ATest.java", "/docs/index.md");
+        assertThat(pathsWithDiff.get(secondCommit.name())).containsExactly("/moduleA/src/main/A.java");
+        assertThat(pathsWithDiff.get(thirdCommit.name())).isEmpty();
+    }
+
+    @Test
+    public void itWalksTheChangesOfEveryCommitInARange() throws Exception {
+        writeFile("moduleA/src/main/A.java", "class A { int b; }");
+        final RevCommit thirdCommit = commitAll("Third");
+
+        final List<String> changes = new ArrayList<>();
+        gitRepositoryUnderTest.walkChangesOfCommits(Optional.empty(), "HEAD", 10, new TreeSet<>(Arrays.asList("moduleA")),
+                (commit, pathsWithDiff) -> changes.add(commit.name() + " " + pathsWithDiff));
+
+        assertThat(changes).containsExactly(
+                thirdCommit.name() + " [/moduleA/src/main/A.java]",
+                secondCommit.name() + " [/moduleA/src/main/A.java, /moduleA/src/test/ATest.java]",
+                firstCommit.name() + " [/moduleA/src/main/A.java, /moduleA/src/test/ATest.java]");
+
+        changes.clear();
+        gitRepositoryUnderTest.walkChangesOfCommits(Optional.of(firstCommit.name()), "HEAD", 1, GitRepository.WHOLE_REPOSITORY,
+                (commit, pathsWithDiff) -> changes.add(commit.name()));
+
+        assertThat(changes).containsExactly(thirdCommit.name());
+    }
+
+    @Test
+    public void itReusesCachedDiffs() throws Exception {
+        final Optional<GitRepository.CommitIds> commitIds = gitRepositoryUnderTest.getCommitIds(DiffStrategy.SPECIFIC_COMMIT, Optional.of(firstCommit.name()));
+        gitRepositoryUnderTest.getPathsThatHaveChanged(commitIds);
+
+        final File cacheDirectory = new File(temporaryFolder.getRoot(), ".git/blast-radius/diff-cache");
+        assertThat(cacheDirectory.list()).hasSize(1);
+
+        final GitRepository anotherGitRepository = new GitRepository(temporaryFolder.getRoot());
+        assertThat(anotherGitRepository.getPathsThatHaveChanged(commitIds).get()).hasSize(3);
+        anotherGitRepository.close();
+    }
+
+    @Test
+    public void itComparesTheWorkingTreeWithHead() throws Exception {
+        //Same size, and likely the same modification time as in the index, so its content has to be checked
+        writeFile("moduleA/src/main/A.java", "class A { int b; }");
+        writeFile("moduleA/src/main/B.java", "class B {}");
+        writeFile("docs/staged.md", "# Staged");
+        git.add().addFilepattern("docs/staged.md").call();
+        writeFile(".gitignore", "build/\n");
+        writeFile("moduleA/build/A.class", "");
+        new File(temporaryFolder.getRoot(), "moduleA/src/test/ATest.java").delete();
+
+        final Optional<GitRepository.CommitIds> commitIds = gitRepositoryUnderTest.getCommitIds(DiffStrategy.WORKING_TREE, Optional.empty());
+
+        assertThat(commitIds.get().isWorkingTree()).isTrue();
+        assertThat(gitRepositoryUnderTest.getPathsThatHaveChanged(commitIds).get())
+                .containsExactlyInAnyOrder("/moduleA/src/main/A.java", "/moduleA/src/main/B.java", "/docs/staged.md", "/.gitignore");
+        assertThat(gitRepositoryUnderTest.getPathsThatHaveChanged(commitIds, new TreeSet<>(Arrays.asList("docs"))).get())
+                .containsExactly("/docs/staged.md");
+    }
+
+    @Test
+    public void itFindsNoChangesInACleanWorkingTree() throws Exception {
+        final Optional<GitRepository.CommitIds> commitIds = gitRepositoryUnderTest.getCommitIds(DiffStrategy.WORKING_TREE, Optional.empty());
+
+        assertThat(gitRepositoryUnderTest.anyPathHasChanged(commitIds, GitRepository.WHOLE_REPOSITORY, path -> true)).contains(false);
+        assertThat(commitIds.get().toString()).isEqualTo(secondCommit.name() + "..working-tree");
+    }
+
+    void writeFile(final String path, final String content) throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    RevCommit commitAll(final String message) throws Exception {
+        git.add().addFilepattern(".").call();
+        git.add().setUpdate(true).addFilepattern(".").call();
+        return git.commit().setMessage(message).setAuthor("test", "test@example.com").call();
+    }
+}
@@ -76,4 +76,43 @@ public class GitRepositoryTest {
 
         assertThat(gitRepositoryUnderTest.getHeadVersion()).contains(Version.valueOf("1.0.1"));
     }
+
+    @Test
+    public void itComparesATaggedHeadWithThePreviousVersion() throws IOException {
+
+        ObjectId mockHeadId = ObjectId.fromString("83baae61804e65cc73a7201a7252750c76066a30");
+
+        Map<String, Ref> mockTags = new HashMap<>();
+        mockTags.put("0.0.1", mockTag("83baae61804e65cc73a7201a7252750c76066a01", null));
+        mockTags.put("1.0.1", mockTag("83baae61804e65cc73a7201a7252750c76066a02", null));
+        //Lightweight tag on head
+        mockTags.put("1.0.0", mockTag("83baae61804e65cc73a7201a7252750c76066a30", null));
+        mockTags.put("not-a-version", mockTag("83baae61804e65cc73a7201a7252750c76066a30", null));
+
+        when(mockRepository.getTags()).thenReturn(mockTags);
+        when(mockRepository.resolve(anyString())).thenReturn(mockHeadId);
+
+        Optional<GitRepository.CommitIds> commitIds = gitRepositoryUnderTest.getCommitIds(DiffStrategy.PREVIOUS_TAG, Optional.empty());
+
+        assertThat(commitIds).isPresent();
+        assertThat(commitIds.get().getPreviousCommit()).isEqualTo(ObjectId.fromString("83baae61804e65cc73a7201a7252750c76066a01"));
+        assertThat(commitIds.get().getCurrentCommit()).isEqualTo(mockHeadId);
+    }
+
+    @Test
+    public void itOnlyParsesTagsThatLookLikeVersions(){
+        assertThat(VersionTagIndex.parseVersion("1.2.3-rc.1+build.5", "")).contains(Version.valueOf("1.2.3-rc.1+build.5"));
+        assertThat(VersionTagIndex.parseVersion("payments-2.3.1", "payments-")).contains(Version.valueOf("2.3.1"));
+        assertThat(VersionTagIndex.parseVersion("payments-2.3.1", "")).isEmpty();
+        assertThat(VersionTagIndex.parseVersion("v1.0.0", "")).isEmpty();
+        assertThat(VersionTagIndex.parseVersion("01.0.0", "")).isEmpty();
+    }
+
+    private Ref mockTag(String objectId, String peeledObjectId){
+        Ref mockRef = mock(Ref.class);
+        when(mockRef.getObjectId()).thenReturn(ObjectId.fromString(objectId));
+        when(mockRef.getPeeledObjectId()).thenReturn(peeledObjectId == null ? null : ObjectId.fromString(peeledObjectId));
+        when(mockRef.isPeeled()).thenReturn(true);
+        return mockRef;
+    }
 }
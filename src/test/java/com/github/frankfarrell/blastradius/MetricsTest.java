@@ -0,0 +1,72 @@
+package com.github.frankfarrell.blastradius;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown(){
+        Metrics.reset();
+    }
+
+    @Test
+    public void itCountsRegexEvaluationsAndModulesVisited(){
+        Metrics.reset();
+        final ModuleGraph moduleGraph = new ModuleGraph.Builder()
+                .addModule(":", "", null, false)
+                .addModule(":a", "/a", ":", true)
+                .build();
+
+        new ModuleChangeEvaluator(moduleGraph, new HashSet<>(Arrays.asList("/src/main/.*")))
+                .getChangedModules(0, Arrays.asList("/a/src/main/A.java", "/a/docs/index.md"));
+
+        assertThat(Metrics.getCount(Metrics.Counter.MODULES_VISITED)).isEqualTo(2);
+        //Each path is tested for the root and :a, both by gradle path and by project directory of :a
+        assertThat(Metrics.getCount(Metrics.Counter.REGEX_EVALUATIONS)).isGreaterThanOrEqualTo(4);
+        assertThat(Metrics.getNanos(Metrics.Phase.MATCHING)).isPositive();
+    }
+
+    @Test
+    public void itWritesTheMetricsAsJson() throws Exception {
+        Metrics.reset();
+        Metrics.count(Metrics.Counter.PATHS_DIFFED, 3);
+        try (Metrics.Timer timer = Metrics.time(Metrics.Phase.TREE_DIFF)) {
+            Thread.sleep(1);
+        }
+
+        final File metricsFile = new File(temporaryFolder.getRoot(), "reports/changedFiles" + Metrics.FILE_SUFFIX);
+        Metrics.writeReport(metricsFile);
+
+        final String json = new String(Files.readAllBytes(metricsFile.toPath()), StandardCharsets.UTF_8);
+        assertThat(json)
+                .startsWith("{\n  \"phases\": {\n    \"repositoryDiscovery\": {\n      \"count\": 0,")
+                .contains("\"treeDiff\": {\n      \"count\": 1,")
+                .contains("\"pathsDiffed\": 3,")
+                .endsWith("}\n}\n");
+    }
+
+    @Test
+    public void itEscapesStrings() throws Exception {
+        final StringWriter stringWriter = new StringWriter();
+        try (JsonWriter json = new JsonWriter(stringWriter)) {
+            json.beginArray().value("a \"quoted\"\\path\n").value(1.5).beginObject().endObject().endArray();
+        }
+
+        assertThat(stringWriter.toString()).isEqualTo("[\n  \"a \\\"quoted\\\"\\\\path\\n\",\n  1.5,\n  {}\n]\n");
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.TaskState;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ModuleChangedTaskTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void itDeclaresTheModuleAsAnInputOfTheCachedResult() throws NoSuchMethodException {
+        assertThat(ModuleChangedTask.class.getMethod("getModulePath").isAnnotationPresent(Input.class)).isTrue();
+        assertThat(ProjectModulesChangedTask.class.getMethod("getModulePath").isAnnotationPresent(Input.class)).isTrue();
+    }
+
+    @Test
+    public void itReadsTheResultItWrote() throws IOException {
+        final File resultFile = new File(temporaryFolder.getRoot(), "blast-radius/checkModule.toDeploy");
+
+        ModuleChangedTask.writeResult(resultFile, true);
+        assertThat(ModuleChangedTask.readResult(resultFile)).isTrue();
+
+        ModuleChangedTask.writeResult(resultFile, false);
+        assertThat(ModuleChangedTask.readResult(resultFile)).isFalse();
+    }
+
+    @Test
+    public void itFailsWithoutAResult() {
+        assertThatThrownBy(() -> ModuleChangedTask.readResult(new File(temporaryFolder.getRoot(), "missing.toDeploy")))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void itReadsTheResultOfATaskThatRanOrWasUpToDate() throws IOException {
+        final File resultFile = new File(temporaryFolder.getRoot(), "checkModule.toDeploy");
+        ModuleChangedTask.writeResult(resultFile, true);
+
+        assertThat(ModuleChangedTask.readResult(":checkModule", state(true, false, false), resultFile)).isTrue();
+        assertThat(ModuleChangedTask.readResult(":checkModule", state(true, true, true), resultFile)).isTrue();
+    }
+
+    @Test
+    public void itDoesntReadAResultLeftByAnEarlierBuild() throws IOException {
+        final File resultFile = new File(temporaryFolder.getRoot(), "checkModule.toDeploy");
+        ModuleChangedTask.writeResult(resultFile, true);
+
+        assertThatThrownBy(() -> ModuleChangedTask.readResult(":checkModule", state(false, false, false), resultFile))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("hasn't run");
+        assertThatThrownBy(() -> ModuleChangedTask.readResult(":checkModule", state(true, true, false), resultFile))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("was skipped");
+    }
+
+    private static TaskState state(final boolean executed, final boolean skipped, final boolean upToDate) {
+        final TaskState state = mock(TaskState.class);
+        when(state.getExecuted()).thenReturn(executed);
+        when(state.getSkipped()).thenReturn(skipped);
+        when(state.getUpToDate()).thenReturn(upToDate);
+        return state;
+    }
+}
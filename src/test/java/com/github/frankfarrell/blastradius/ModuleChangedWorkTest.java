@@ -0,0 +1,129 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.api.Git;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs against a real repository created in a temporary folder
+ */
+public class ModuleChangedWorkTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    final ModuleGraph moduleGraph = new ModuleGraph.Builder()
+            .addModule(":", "", null, false)
+            .addModule(":a", "/a", ":", true)
+            .addModule(":b", "/b", ":", true)
+            .build();
+
+    Git git;
+
+    @Before
+    public void setup() throws Exception {
+        git = Git.init().setDirectory(temporaryFolder.getRoot()).call();
+
+        writeFile("a/src/main/A.java", "class A {}");
+        writeFile("b/src/main/B.java", "class B {}");
+        commitAll("First");
+
+        writeFile("a/src/main/A.java", "class A { int a; }");
+        commitAll("Second");
+
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown(){
+        GitDiffService.forRootDirectory(temporaryFolder.getRoot()).close();
+        git.close();
+        Metrics.reset();
+    }
+
+    @Test
+    public void itWritesTheResultAndTheMetrics() throws IOException {
+        final File resultFile = new File(temporaryFolder.getRoot(), "a/build/blast-radius/checkA.toDeploy");
+        final File metricsFile = new File(temporaryFolder.getRoot(), "a/build/blast-radius/checkA" + Metrics.FILE_SUFFIX);
+
+        work(":a", resultFile, metricsFile).run();
+
+        assertThat(ModuleChangedTask.readResult(resultFile)).isTrue();
+        assertThat(metricsFile).isFile();
+    }
+
+    @Test
+    public void itWritesThatAnUnchangedModuleHasntChanged() throws IOException {
+        final File resultFile = new File(temporaryFolder.getRoot(), "b/build/blast-radius/checkB.toDeploy");
+
+        work(":b", resultFile, new File(temporaryFolder.getRoot(), "b/build/blast-radius/checkB" + Metrics.FILE_SUFFIX)).run();
+
+        assertThat(ModuleChangedTask.readResult(resultFile)).isFalse();
+    }
+
+    @Test
+    public void itReusesTheDiffOfTheBuild() throws IOException {
+        //Eg by a ProjectModulesChangedTask earlier in the same build
+        GitDiffService.forRootDirectory(temporaryFolder.getRoot()).getPathsThatHaveChanged(DiffStrategy.PREVIOUS_COMMIT, Optional.empty());
+        final long pathsDiffed = Metrics.getCount(Metrics.Counter.PATHS_DIFFED);
+
+        final File resultA = new File(temporaryFolder.getRoot(), "a/checkA.toDeploy");
+        final File resultB = new File(temporaryFolder.getRoot(), "b/checkB.toDeploy");
+        work(":a", resultA, new File(temporaryFolder.getRoot(), "a/checkA" + Metrics.FILE_SUFFIX)).run();
+        work(":b", resultB, new File(temporaryFolder.getRoot(), "b/checkB" + Metrics.FILE_SUFFIX)).run();
+
+        assertThat(ModuleChangedTask.readResult(resultA)).isTrue();
+        assertThat(ModuleChangedTask.readResult(resultB)).isFalse();
+        assertThat(Metrics.getCount(Metrics.Counter.PATHS_DIFFED)).isEqualTo(pathsDiffed);
+    }
+
+    @Test
+    public void itOnlyNeedsWhatTheTaskCaptured() throws Exception {
+        //The graph as it is after being handed to a worker or stored, with nothing of the project behind it
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(moduleGraph);
+        }
+        final ModuleGraph captured;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            captured = (ModuleGraph) in.readObject();
+        }
+
+        assertThat(ModuleChangedTask.shouldModuleBeDeployed(GitDiffService.forRootDirectory(temporaryFolder.getRoot()),
+                new GradleModule(captured, ":a"), Collections.singleton("/src/main/.*"),
+                DiffStrategy.PREVIOUS_COMMIT, Optional.empty(), false)).isTrue();
+    }
+
+    private ModuleChangedWork work(final String modulePath, final File resultFile, final File metricsFile) {
+        return new ModuleChangedWork(temporaryFolder.getRoot(), moduleGraph, modulePath,
+                Collections.singleton("/src/main/.*"), DiffStrategy.PREVIOUS_COMMIT.name(), "", false,
+                resultFile, metricsFile);
+    }
+
+    private void writeFile(final String path, final String content) throws IOException {
+        final File file = new File(temporaryFolder.getRoot(), path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void commitAll(final String message) throws Exception {
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage(message).call();
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.frankfarrell.blastradius;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.execution.TaskExecutionGraph;
+import org.gradle.api.provider.Property;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ModuleGraphTest {
+
+    ModuleGraph moduleGraphUnderTest;
+
+    /*
+    :
+    ├── :a
+    ├── :b  -> :a
+    ├── :c  -> :a
+    └── :d  -> :b, :c
+        └── :d:e
+     */
+    @Before
+    public void setup(){
+        moduleGraphUnderTest = new ModuleGraph.Builder()
+                .addModule(":", "", null, false)
+                .addModule(":a", "/a", ":", true)
+                .addModule(":b", "/b", ":", true)
+                .addModule(":c", "/c", ":", true)
+                .addModule(":d", "/d", ":", true)
+                .addModule(":d:e", "/d/e", ":d", false)
+                .addDependency(":b", ":a")
+                .addDependency(":c", ":a")
+                .addDependency(":d", ":b")
+                .addDependency(":d", ":c")
+                .build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void itIsCapturedForATaskOnceTheTaskGraphIsReady(){
+        final TaskExecutionGraph taskGraph = mock(TaskExecutionGraph.class);
+        when(taskGraph.hasTask(":blastRadiusChangedModules")).thenReturn(true);
+        final Property<ModuleGraph> moduleGraph = mock(Property.class);
+
+        ModuleGraph.capture(":blastRadiusChangedModules", () -> moduleGraphUnderTest, moduleGraph).execute(taskGraph);
+
+        verify(moduleGraph).set(moduleGraphUnderTest);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void itIsntBuiltForATaskThatWontRun(){
+        final TaskExecutionGraph taskGraph = mock(TaskExecutionGraph.class);
+        final Property<ModuleGraph> moduleGraph = mock(Property.class);
+
+        ModuleGraph.capture(":blastRadiusChangedModules", () -> {
+            throw new AssertionError("The graph shouldn't be built");
+        }, moduleGraph).execute(taskGraph);
+
+        verify(moduleGraph, never()).set(any(ModuleGraph.class));
+        assertThatThrownBy(() -> ModuleGraph.captured(":blastRadiusChangedModules", moduleGraph))
+                .isInstanceOf(GradleException.class)
+                .hasMessageContaining(":blastRadiusChangedModules");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void itIsReadBackWithoutTheProject(){
+        final Property<ModuleGraph> moduleGraph = mock(Property.class);
+        when(moduleGraph.getOrNull()).thenReturn(moduleGraphUnderTest);
+
+        assertThat(ModuleGraph.captured(":blastRadiusChangedModules", moduleGraph)).isSameAs(moduleGraphUnderTest);
+    }
+
+    @Test
+    public void itComputesTransitiveDependenciesIncludingTheModuleItself(){
+        assertThat(paths(moduleGraphUnderTest, moduleGraphUnderTest.getTransitiveDependencies(moduleGraphUnderTest.indexOf(":d"))))
+                .containsExactlyInAnyOrder(":a", ":b", ":c", ":d");
+        assertThat(paths(moduleGraphUnderTest, moduleGraphUnderTest.getTransitiveDependencies(moduleGraphUnderTest.indexOf(":a"))))
+                .containsExactly(":a");
+    }
+
+    @Test
+    public void itPropagatesChangesToDependents(){
+        final BitSet changed = new BitSet();
+        changed.set(moduleGraphUnderTest.indexOf(":a"));
+
+        assertThat(paths(moduleGraphUnderTest, moduleGraphUnderTest.propagateToDependents(changed)))
+                .containsExactlyInAnyOrder(":a", ":b", ":c", ":d");
+    }
+
+    @Test
+    public void itDoesNotPropagateChangesToDependencies(){
+        final BitSet changed = new BitSet();
+        changed.set(moduleGraphUnderTest.indexOf(":b"));
+
+        assertThat(paths(moduleGraphUnderTest, moduleGraphUnderTest.propagateToDependents(changed)))
+                .containsExactlyInAnyOrder(":b", ":d");
+    }
+
+    @Test
+    public void itHandlesDependencyCycles(){
+        final ModuleGraph cyclicGraph = new ModuleGraph.Builder()
+                .addModule(":", "", null, false)
+                .addModule(":x", "/x", ":", true)
+                .addModule(":y", "/y", ":", true)
+                .addModule(":z", "/z", ":", true)
+                .addDependency(":x", ":y")
+                .addDependency(":y", ":z")
+                .addDependency(":z", ":x")
+                .build();
+
+        assertThat(paths(cyclicGraph, cyclicGraph.getTransitiveDependencies(cyclicGraph.indexOf(":x"))))
+                .containsExactlyInAnyOrder(":x", ":y", ":z");
+
+        final BitSet changed = new BitSet();
+        changed.set(cyclicGraph.indexOf(":x"));
+        assertThat(paths(cyclicGraph, cyclicGraph.propagateToDependents(changed)))
+                .containsExactlyInAnyOrder(":x", ":y", ":z");
+    }
+
+    @Test
+    public void itListsDescendantsParentsFirst(){
+        assertThat(moduleGraphUnderTest.getModuleAndDescendants(moduleGraphUnderTest.indexOf(":d")))
+                .containsExactly(moduleGraphUnderTest.indexOf(":d"), moduleGraphUnderTest.indexOf(":d:e"));
+    }
+
+    @Test
+    public void itDetectsChangesInDependenciesUsingTheDependentsPatterns(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest,
+                new HashSet<>(Arrays.asList("/src/main/.*")),
+                Collections.singletonMap(":c", new HashSet<>(Collections.singletonList("/deploy/.*"))));
+
+        assertThat(evaluator.getChangedModules(0, Collections.singletonList("/a/src/main/A.java")))
+                .containsEntry(":", false)
+                .containsEntry(":a", true)
+                .containsEntry(":b", true)
+                .containsEntry(":c", false)
+                .containsEntry(":d", true)
+                .containsEntry(":d:e", true);
+    }
+
+    @Test
+    public void itHasTheSameFingerprintForTheSameGraph(){
+        assertThat(buildGraph(":b").getFingerprint()).isEqualTo(buildGraph(":b").getFingerprint());
+    }
+
+    @Test
+    public void itHasADifferentFingerprintWhenADependencyChanges(){
+        assertThat(buildGraph(":b").getFingerprint()).isNotEqualTo(buildGraph(":c").getFingerprint());
+        assertThat(buildGraph(":b").getFingerprint()).isNotEqualTo(buildGraph(null).getFingerprint());
+    }
+
+    @Test
+    public void itRoutesPathsToEveryModuleWhoseDirectoryTheyAreIn(){
+        final List<String> visited = new ArrayList<>();
+        moduleGraphUnderTest.getPathTrie().route("/d/e/src/main/E.java", (module, isProjectDirectory, tailStart) ->
+                visited.add(moduleGraphUnderTest.getModulePath(module) + (isProjectDirectory ? " dir " : " path ") + tailStart));
+
+        assertThat(visited).containsExactly(": dir 0", ": path 0", ":d dir 2", ":d path 2", ":d:e dir 4", ":d:e path 4");
+    }
+
+    @Test
+    public void itOnlyMatchesPatternsRelativeToTheModule(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest, new HashSet<>(Arrays.asList("/src/main/.*")));
+
+        assertThat(evaluator.getChangedModules(0, Arrays.asList("/ab/src/main/A.java", "/a/src/test/ATest.java", "/src/test/RootTest.java")))
+                .doesNotContainValue(true);
+        assertThat(evaluator.hasChanged(moduleGraphUnderTest.indexOf(":d:e"), Collections.singletonList("/d/e/src/main/E.java")))
+                .isTrue();
+    }
+
+    @Test
+    public void itGivesTheSameResultWhenPathsAreMatchedInParallel(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest, new HashSet<>(Arrays.asList("/src/main/.*")));
+
+        final List<String> manyPaths = new ArrayList<>();
+        for(int i = 0; i < ModuleChangeEvaluator.PATHS_PER_TASK * 8; i++){
+            manyPaths.add("/b/src/test/Test" + i + ".java");
+        }
+        manyPaths.add(ModuleChangeEvaluator.PATHS_PER_TASK * 5, "/c/src/main/C.java");
+
+        assertThat(evaluator.getChangedModules(0, manyPaths))
+                .isEqualTo(evaluator.getChangedModules(0, Collections.singletonList("/c/src/main/C.java")))
+                .containsEntry(":c", true);
+    }
+
+    @Test
+    public void itComparesEachModuleWithItsOwnDiff(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest, new HashSet<>(Arrays.asList("/src/main/.*")));
+        final List<String> sinceOldDeploy = Collections.singletonList("/a/src/main/A.java");
+        final List<String> sinceRecentDeploy = Collections.emptyList();
+
+        assertThat(evaluator.getChangedModules(0, modulePath -> {
+                    switch (modulePath){
+                        case ":b": return Optional.of(sinceOldDeploy);
+                        case ":c":
+                        case ":d": return Optional.of(sinceRecentDeploy);
+                        case ":a": return Optional.empty();
+                        default: return Optional.of(sinceRecentDeploy);
+                    }
+                }))
+                .containsEntry(":", false)
+                .containsEntry(":a", true)
+                .containsEntry(":b", true)
+                .containsEntry(":c", false)
+                .containsEntry(":d", false)
+                .containsEntry(":d:e", false);
+    }
+
+    @Test
+    public void itTestsOnePathAtATimeLikeTheWholeList(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest, new HashSet<>(Arrays.asList("/src/main/.*")));
+        final int moduleD = moduleGraphUnderTest.indexOf(":d");
+
+        for(final String path : Arrays.asList("/a/src/main/A.java", "/a/src/test/ATest.java", "/d/src/main/D.java", "/d/e/src/main/E.java", "/src/main/Root.java")){
+            assertThat(evaluator.changesModule(moduleD).test(path))
+                    .as(path)
+                    .isEqualTo(evaluator.hasChanged(moduleD, Collections.singletonList(path)));
+        }
+        assertThat(evaluator.changesModule(moduleD).test("/a/src/main/A.java")).isTrue();
+    }
+
+    @Test
+    public void itOnlyAsksGitForDirectoriesThePatternsCouldMatch(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest,
+                new HashSet<>(Arrays.asList("/src/main/.*", "/deploy/.*")),
+                Collections.singletonMap(":d:e", new HashSet<>(Collections.singletonList("glob:/helm/**"))));
+
+        assertThat(evaluator.getPathPrefixes(moduleGraphUnderTest.indexOf(":d")))
+                .containsExactly("a/deploy", "a/src/main", "b/deploy", "b/src/main", "c/deploy", "c/src/main", "d/deploy", "d/e/helm", "d/src/main");
+        assertThat(evaluator.getPathPrefixes(moduleGraphUnderTest.indexOf(":")))
+                .containsExactly("a/deploy", "a/src/main", "b/deploy", "b/src/main", "c/deploy", "c/src/main", "d/deploy", "d/e/helm", "d/src/main", "deploy", "src/main");
+
+        assertThat(new ModuleChangeEvaluator(moduleGraphUnderTest, ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS).getPathPrefixes(0))
+                .containsExactly("");
+    }
+
+    @Test
+    public void itExplainsWhyEachModuleHasChanged(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest,
+                new HashSet<>(Arrays.asList("/src/main/.*", "/deploy/.*")));
+        final List<String> pathsWithDiff = Arrays.asList("/docs/index.md", "/a/deploy/run.sh", "/a/src/main/A.java", "/b/src/main/B.java");
+
+        final DecisionTrace trace = evaluator.explain(evaluator.getChangedModules(0, pathsWithDiff), pathsWithDiff);
+
+        assertThat(trace.getDecision(":").get().isChanged()).isFalse();
+        assertThat(trace.getDecision(":a").get().getSource()).contains(DecisionTrace.Source.SELF);
+        assertThat(trace.getDecision(":a").get().getPath()).contains("/a/deploy/run.sh");
+        assertThat(trace.getDecision(":a").get().getPattern()).contains("/deploy/.*");
+        //The first path that changed it, even though it changed itself later
+        assertThat(trace.getDecision(":b").get().getSource()).contains(DecisionTrace.Source.DEPENDENCY);
+        assertThat(trace.getDecision(":b").get().getThroughModule()).contains(":a");
+        assertThat(trace.getDecision(":d").get().getSource()).contains(DecisionTrace.Source.DEPENDENCY);
+        assertThat(trace.getDecision(":d:e").get().getSource()).contains(DecisionTrace.Source.PARENT);
+        assertThat(trace.getDecision(":d:e").get().getThroughModule()).contains(":d");
+    }
+
+    @Test
+    public void itExplainsModulesWithoutADiff(){
+        final ModuleChangeEvaluator evaluator = new ModuleChangeEvaluator(moduleGraphUnderTest, new HashSet<>(Arrays.asList("/src/main/.*")));
+        final List<String> pathsWithDiffOfA = Collections.singletonList("/a/src/test/ATest.java");
+
+        final DecisionTrace trace = evaluator.explain(
+                evaluator.getChangedModules(0, modulePath -> modulePath.equals(":c") ? Optional.empty() : Optional.of(pathsWithDiffOfA)),
+                modulePath -> modulePath.equals(":c") ? Optional.empty() : Optional.of(pathsWithDiffOfA));
+
+        assertThat(trace.getDecision(":a").get().isChanged()).isFalse();
+        assertThat(trace.getDecision(":c").get().getSource()).contains(DecisionTrace.Source.NO_DIFF);
+        assertThat(trace.getDecision(":c").get().getPath()).isEmpty();
+    }
+
+    private static List<String> paths(final ModuleGraph moduleGraph, final BitSet modules){
+        return modules.stream().mapToObj(moduleGraph::getModulePath).collect(Collectors.toList());
+    }
+
+    //:a, and :b and :c, with :d depending on dependencyOfD if it isn't null
+    private static ModuleGraph buildGraph(final String dependencyOfD){
+        final ModuleGraph.Builder builder = new ModuleGraph.Builder()
+                .addModule(":", "", null, false)
+                .addModule(":a", "/a", ":", true)
+                .addModule(":b", "/b", ":", true)
+                .addModule(":c", "/c", ":", true)
+                .addModule(":d", "/d", ":", true);
+        if(dependencyOfD != null){
+            builder.addDependency(":d", dependencyOfD);
+        }
+        return builder.build();
+    }
+}
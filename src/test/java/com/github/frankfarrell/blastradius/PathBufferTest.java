@@ -0,0 +1,52 @@
+package com.github.frankfarrell.blastradius;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PathBufferTest {
+
+    final PathBuffer pathBufferUnderTest = new PathBuffer();
+
+    @Test
+    public void itAddsTheLeadingSlashToRawPaths(){
+        final byte[] raw = "moduleA/src/main/A.java".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(pathBufferUnderTest.setRaw(raw, raw.length).toString()).isEqualTo("/moduleA/src/main/A.java");
+    }
+
+    @Test
+    public void itOnlyReadsTheLengthOfTheRawPathGiven(){
+        final byte[] raw = "moduleA/src/main/A.java and some left over bytes".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(pathBufferUnderTest.setRaw(raw, 23).toString()).isEqualTo("/moduleA/src/main/A.java");
+    }
+
+    @Test
+    public void itDecodesRawPathsThatArentAscii(){
+        final byte[] raw = "m\u00f3dulo/src/main/\u00d1and\u00fa.java".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(pathBufferUnderTest.setRaw(raw, raw.length).toString()).isEqualTo("/m\u00f3dulo/src/main/\u00d1and\u00fa.java");
+        assertThat(pathBufferUnderTest.length()).isEqualTo("/m\u00f3dulo/src/main/\u00d1and\u00fa.java".length());
+    }
+
+    @Test
+    public void itNormalizesSeparatorsOnce(){
+        assertThat(pathBufferUnderTest.set("/moduleA\\src\\main\\A.java").toString()).isEqualTo("/moduleA/src/main/A.java");
+    }
+
+    @Test
+    public void itCanBeReusedForShorterAndLongerPaths(){
+        final StringBuilder longPath = new StringBuilder();
+        for(int i = 0; i < 100; i++){
+            longPath.append("/directory").append(i);
+        }
+
+        assertThat(pathBufferUnderTest.set(longPath).toString()).isEqualTo(longPath.toString());
+        assertThat(pathBufferUnderTest.set("/a").toString()).isEqualTo("/a");
+        assertThat(FilePatternMatcher.matches(FilePatternMatcher.forPatterns(ProjectModulesChangedTask.DEFAULT_FILE_PATTERNS).newMatcher(),
+                pathBufferUnderTest.set("/src/main/A.java"), 0)).isTrue();
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.frankfarrell.blastradius;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs against a real repository created in a temporary folder
+ */
+public class WarmRepositoryCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    Git git;
+
+    @Before
+    public void setup() throws Exception {
+        git = Git.init().setDirectory(temporaryFolder.getRoot()).call();
+        Files.write(new File(temporaryFolder.getRoot(), "build.gradle").toPath(), "".getBytes(StandardCharsets.UTF_8));
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage("First").call();
+        git.tag().setName("1.0.0").call();
+    }
+
+    @After
+    public void tearDown(){
+        git.close();
+        WarmRepositoryCache.clear();
+    }
+
+    @Test
+    public void itReusesTheRepositoryInLaterBuilds() throws Exception {
+        try (Repository firstBuild = WarmRepositoryCache.open(temporaryFolder.getRoot());
+             Repository secondBuild = WarmRepositoryCache.open(temporaryFolder.getRoot())) {
+            assertThat(secondBuild).isSameAs(firstBuild);
+        }
+    }
+
+    @Test
+    public void itKeepsTheRepositoryOpenUntilItIsEvicted() throws Exception {
+        final Repository repository;
+        try (Repository firstBuild = WarmRepositoryCache.open(temporaryFolder.getRoot())) {
+            repository = firstBuild;
+        }
+        assertThat(repository.resolve("1.0.0")).isNotNull();
+    }
+
+    @Test
+    public void itReusesTheVersionTagsUntilARefChanges() throws Exception {
+        makeRefsOlderThanRacy();
+
+        final VersionTagIndex first;
+        try (GitRepository firstBuild = new GitRepository(temporaryFolder.getRoot())) {
+            first = firstBuild.getVersionTagIndex();
+        }
+        try (GitRepository secondBuild = new GitRepository(temporaryFolder.getRoot())) {
+            assertThat(secondBuild.getVersionTagIndex()).isSameAs(first);
+        }
+
+        git.tag().setName("1.1.0").call();
+
+        try (GitRepository thirdBuild = new GitRepository(temporaryFolder.getRoot())) {
+            assertThat(thirdBuild.getVersionTagIndex()).isNotSameAs(first);
+            assertThat(thirdBuild.getVersionTagIndex().size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void itOnlyLooksAtTheDirectoriesOfTags() throws Exception {
+        for(int i = 0; i < 20; i++){
+            git.tag().setName("1.0." + (i + 1)).call();
+        }
+        final File gitDirectory = git.getRepository().getDirectory();
+
+        final WarmRepositoryCache.RefsStamp stamp = WarmRepositoryCache.RefsStamp.of(gitDirectory);
+        assertThat(stamp.getFiles()).containsExactly(new File(gitDirectory, "packed-refs"), new File(gitDirectory, "refs/tags"));
+        assertThat(stamp.isCurrent()).isTrue();
+
+        makeRefsOlderThanRacy();
+        final WarmRepositoryCache.RefsStamp olderStamp = WarmRepositoryCache.RefsStamp.of(gitDirectory);
+        git.tag().setName("terraform/0.4.0").call();
+
+        assertThat(olderStamp.isCurrent()).isFalse();
+        assertThat(WarmRepositoryCache.RefsStamp.of(gitDirectory).getFiles()).contains(new File(gitDirectory, "refs/tags/terraform"));
+    }
+
+    private void makeRefsOlderThanRacy() {
+        final long past = System.currentTimeMillis() - 10 * WarmRepositoryCache.RACY_MILLIS;
+        final File gitDirectory = git.getRepository().getDirectory();
+        final Deque<File> toVisit = new ArrayDeque<>(Arrays.asList(new File(gitDirectory, "HEAD"), new File(gitDirectory, "refs")));
+        while(!toVisit.isEmpty()){
+            final File file = toVisit.pop();
+            final File[] children = file.listFiles();
+            if(children != null){
+                toVisit.addAll(Arrays.asList(children));
+            }
+            file.setLastModified(past);
+        }
+    }
+}